@@ -10,6 +10,10 @@ package com.k10v.goaltracker;
 public final class R {
     public static final class attr {
     }
+    public static final class dimen {
+        public static final int sparkline_height=0x7f070001;
+        public static final int sparkline_width=0x7f070000;
+    }
     public static final class drawable {
         public static final int icon=0x7f020000;
     }
@@ -24,7 +28,11 @@ public final class R {
         public static final int report_row_date=0x7f060005;
         public static final int report_row_value=0x7f060006;
         public static final int report_value=0x7f060002;
+        public static final int task_row_date=0x7f06000f;
+        public static final int task_row_progress=0x7f060010;
+        public static final int task_row_sparkline=0x7f060011;
         public static final int task_row_text=0x7f06000d;
+        public static final int task_row_value=0x7f06000e;
         public static final int task_start_value=0x7f060008;
         public static final int task_target_value=0x7f060009;
         public static final int task_title=0x7f060007;
@@ -61,6 +69,12 @@ public final class R {
         public static final int delete_report_title=0x7f04002b;
         public static final int delete_task_message=0x7f04001f;
         public static final int delete_task_title=0x7f04001e;
+        /**  Export 
+         */
+        public static final int export_progress=0x7f04002f;
+        /**  Graph 
+         */
+        public static final int graph_selection_min_max=0x7f040033;
         public static final int menu_create_report=0x7f04000a;
         /**  Menus 
          */
@@ -68,7 +82,12 @@ public final class R {
         public static final int menu_delete_report=0x7f04000b;
         public static final int menu_delete_task=0x7f040008;
         public static final int menu_edit_task=0x7f040007;
+        public static final int menu_export_csv=0x7f04002d;
+        public static final int menu_export_json=0x7f04002e;
         public static final int menu_view_task_reports=0x7f040009;
+        public static final int message_export_done=0x7f040030;
+        public static final int message_export_failed=0x7f040031;
+        public static final int message_loading=0x7f040034;
         /**  List of reports 
          */
         public static final int message_no_reports=0x7f040020;
@@ -78,6 +97,7 @@ public final class R {
         public static final int message_report_created=0x7f040027;
         public static final int message_report_deleted=0x7f040029;
         public static final int message_report_updated=0x7f040028;
+        public static final int message_save_failed=0x7f040032;
         public static final int message_task_created=0x7f04001b;
         public static final int message_task_deleted=0x7f04001d;
         public static final int message_task_updated=0x7f04001c;
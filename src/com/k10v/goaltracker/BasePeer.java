@@ -1,14 +1,123 @@
 package com.k10v.goaltracker;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 abstract public class BasePeer {
 
+    private static final String SQL_CHANGES = "SELECT changes()";
+
     protected GoalTrackerDbAdapter dbAdapter;
     protected SQLiteDatabase mDb;
 
+    /**
+     * Compiled statements, cached per thread because SQLiteStatement can't be
+     * shared between threads (the key is SQL string of the statement)
+     */
+    private final ThreadLocal<HashMap<String, SQLiteStatement>> mStatements =
+            new ThreadLocal<HashMap<String, SQLiteStatement>>() {
+                @Override
+                protected HashMap<String, SQLiteStatement> initialValue() {
+                    return new HashMap<String, SQLiteStatement>();
+                }
+            };
+
+    /**
+     * All statements compiled by this peer (in all threads), they are
+     * released by close()
+     */
+    private final ArrayList<SQLiteStatement> mAllStatements =
+            new ArrayList<SQLiteStatement>();
+
     public BasePeer(GoalTrackerDbAdapter dbAdapter, SQLiteDatabase mDb) {
         this.dbAdapter = dbAdapter;
         this.mDb = mDb;
     }
+
+    /**
+     * Returns compiled statement for the given SQL, compiling it on first use
+     * in the current thread. Statement arguments should be bound right before
+     * the statement is executed.
+     *
+     * @param sql
+     * @return compiled statement
+     */
+    protected SQLiteStatement getStatement(String sql) {
+        HashMap<String, SQLiteStatement> statements = mStatements.get();
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = mDb.compileStatement(sql);
+            statements.put(sql, statement);
+            synchronized (mAllStatements) {
+                mAllStatements.add(statement);
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * Executes INSERT statement with already bound arguments
+     *
+     * @param statement
+     * @return rowId of the inserted row or -1 if failed
+     */
+    protected long executeInsert(SQLiteStatement statement) {
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Executes UPDATE or DELETE statement with already bound arguments.
+     * Statement runs in a transaction so that no other thread can change the
+     * number of affected rows before it's read.
+     *
+     * @param statement
+     * @return number of affected rows
+     */
+    protected int executeUpdateDelete(SQLiteStatement statement) {
+        mDb.beginTransaction();
+        try {
+            statement.execute();
+            int changes = (int) getStatement(SQL_CHANGES).simpleQueryForLong();
+            mDb.setTransactionSuccessful();
+            return changes;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Binds nullable value to the statement
+     *
+     * @param statement
+     * @param index 1-based index of the argument
+     * @param value
+     */
+    protected static void bindDouble(SQLiteStatement statement, int index, Double value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, value);
+        }
+    }
+
+    /**
+     * Releases all compiled statements; should be called before the database
+     * is closed
+     */
+    public void close() {
+        synchronized (mAllStatements) {
+            for (SQLiteStatement statement : mAllStatements) {
+                statement.close();
+            }
+            mAllStatements.clear();
+        }
+    }
 }
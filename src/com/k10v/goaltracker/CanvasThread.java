@@ -1,34 +1,80 @@
 package com.k10v.goaltracker;
 
 import android.graphics.Canvas;
+import android.os.SystemClock;
 import android.view.SurfaceHolder;
 
+/**
+ * Draws the panel when it asks for it. The thread sleeps until a frame is
+ * requested; all requests made while a frame is drawn or while the thread
+ * waits for the next frame are combined into a single frame.
+ */
 public class CanvasThread extends Thread {
+
+    /**
+     * Minimum time between two frames in ms (limits frame rate to ~60 FPS)
+     */
+    private static final long MIN_FRAME_INTERVAL = 16;
+
     private SurfaceHolder mSurfaceHolder;
     private Panel mPanel;
+
+    // Guarded by this
     private boolean mRun = false;
+    private boolean mRenderRequested = true;
+
+    private long mLastFrameTime = 0;
 
     public CanvasThread(SurfaceHolder surfaceHolder, Panel panel) {
         mSurfaceHolder = surfaceHolder;
         mPanel = panel;
     }
 
-    public void setRunning(boolean run) {
+    public synchronized void setRunning(boolean run) {
         mRun = run;
+        notifyAll();
+    }
+
+    /**
+     * Ask the thread to draw a new frame
+     */
+    public synchronized void requestRender() {
+        mRenderRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Wait until a frame is requested and it's time to draw it
+     *
+     * @return false if the thread should stop
+     */
+    private synchronized boolean waitForFrame() {
+        try {
+            while (mRun && !mRenderRequested) {
+                wait();
+            }
+            long delay;
+            while (mRun && (delay = mLastFrameTime + MIN_FRAME_INTERVAL - SystemClock.uptimeMillis()) > 0) {
+                wait(delay);
+            }
+        } catch (InterruptedException e) {
+            return false;
+        }
+        mRenderRequested = false;
+        return mRun;
     }
 
     @Override
     public void run() {
         Canvas c;
-        while (mRun) {
+        while (waitForFrame()) {
             c = null;
-            if (!mPanel.needsUpdate()) {
-                continue;
-            }
             try {
                 c = mSurfaceHolder.lockCanvas();
-                synchronized (mSurfaceHolder) {
-                    mPanel.onDraw(c);
+                if (c != null) {
+                    synchronized (mSurfaceHolder) {
+                        mPanel.onDraw(c);
+                    }
                 }
             } finally {
                 // do this in a finally so that if an exception is thrown during
@@ -38,6 +84,7 @@ public class CanvasThread extends Thread {
                     mSurfaceHolder.unlockCanvasAndPost(c);
                 }
             }
+            mLastFrameTime = SystemClock.uptimeMillis();
         }
     }
 }
@@ -0,0 +1,180 @@
+package com.k10v.goaltracker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Value of a task on every day between its first and last report (i.e. the
+ * value of the last report made on or before the day), built once when the
+ * reports are loaded so that any day can be looked up in constant time.
+ *
+ * Like TaskSeries, daily values are immutable and share the array with the
+ * daily values they were appended to when possible.
+ *
+ * If reports span more than MAX_LENGTH days (e.g. because of a mistyped
+ * year), no array is built and days are looked up by binary search in the
+ * series instead.
+ */
+public class DailyValues {
+
+    /**
+     * Max number of days kept in the array (about 45 years, 64 KB)
+     */
+    static final int MAX_LENGTH = 1 << 14;
+
+    private final TaskSeries mSeries;
+    private final int mFirstDay;
+
+    /**
+     * Null if the reports span too many days
+     */
+    private final float[] mValues;
+    private final int mLength;
+    private final float mStartValue;
+
+    /**
+     * Number of elements of the array used by any instance sharing it
+     */
+    private final AtomicInteger mUsed;
+
+    private DailyValues(TaskSeries series, int firstDay, float[] values,
+            int length, float startValue, AtomicInteger used) {
+        mSeries = series;
+        mFirstDay = firstDay;
+        mValues = values;
+        mLength = length;
+        mStartValue = startValue;
+        mUsed = used;
+    }
+
+    private DailyValues(TaskSeries series, int firstDay, float[] values,
+            int length, float startValue) {
+        this(series, firstDay, values, length, startValue, new AtomicInteger(length));
+    }
+
+    /**
+     * Daily values looked up in the series
+     *
+     * @param series
+     * @param startValue
+     */
+    private DailyValues(TaskSeries series, float startValue) {
+        this(series, 0, null, 0, startValue, null);
+    }
+
+    /**
+     * Build daily values from the reports
+     *
+     * @param series
+     * @param startValue Value before the first report
+     * @return
+     */
+    public static DailyValues build(TaskSeries series, float startValue) {
+
+        int size = series.size();
+        if (size == 0) {
+            return new DailyValues(series, 0, new float[0], 0, startValue);
+        }
+
+        int firstDay = series.getDay(0);
+        int length = series.getDay(size - 1) - firstDay + 1;
+        if (length > MAX_LENGTH) {
+            return new DailyValues(series, startValue);
+        }
+        float[] values = new float[TaskSeries.getCapacity(length)];
+
+        // Fill days from every report up to the next one
+        for (int i = 0; i < size; i++) {
+            int from = series.getDay(i) - firstDay;
+            int to = (i + 1 < size) ? series.getDay(i + 1) - firstDay : length;
+            float value = series.getValue(i);
+            for (int day = from; day < to; day++) {
+                values[day] = value;
+            }
+        }
+
+        return new DailyValues(series, firstDay, values, length, startValue);
+    }
+
+    /**
+     * Returns daily values with the report added after the last report
+     *
+     * @param series Series with the report appended to the series of these
+     *        daily values
+     * @return
+     */
+    public DailyValues append(TaskSeries series) {
+
+        int size = series.size();
+        int day = series.getDay(size - 1);
+        float value = series.getValue(size - 1);
+
+        if (mLength == 0 && mValues != null) {
+            float[] values = new float[TaskSeries.getCapacity(1)];
+            values[0] = value;
+            return new DailyValues(series, day, values, 1, mStartValue);
+        }
+
+        int length = day - mFirstDay + 1;
+        if (mValues == null || length > MAX_LENGTH) {
+            return new DailyValues(series, mStartValue);
+        }
+
+        float[] values = mValues;
+        AtomicInteger used = mUsed;
+        if (length > values.length || !used.compareAndSet(mLength, length)) {
+            values = new float[TaskSeries.getCapacity(length)];
+            System.arraycopy(mValues, 0, values, 0, mLength);
+            used = new AtomicInteger(length);
+        }
+
+        // Days since the last report have its value
+        float lastValue = values[mLength - 1];
+        for (int i = mLength; i < length - 1; i++) {
+            values[i] = lastValue;
+        }
+        values[length - 1] = value;
+
+        return new DailyValues(series, mFirstDay, values, length, mStartValue, used);
+    }
+
+    /**
+     * Returns daily values of the first reports, e.g. after the last report
+     * is removed
+     *
+     * @param series Series with the last reports of the series of these daily
+     *        values removed; must not be empty
+     * @return
+     */
+    public DailyValues truncate(TaskSeries series) {
+        if (mValues == null) {
+            // The remaining reports may fit into an array again
+            return build(series, mStartValue);
+        }
+        int length = series.getDay(series.size() - 1) - mFirstDay + 1;
+        if (length == mLength) {
+            return this;
+        }
+        return new DailyValues(series, mFirstDay, mValues, length, mStartValue, mUsed);
+    }
+
+    /**
+     * Returns the value on the given day; days after the last report have
+     * the value of the last report
+     *
+     * @param day Epoch day
+     * @return
+     */
+    public float getValue(int day) {
+        if (mValues == null) {
+            return mSeries.getValueAt(day, mStartValue);
+        }
+        int index = day - mFirstDay;
+        if (index < 0 || mLength == 0) {
+            return mStartValue;
+        }
+        if (index >= mLength) {
+            return mValues[mLength - 1];
+        }
+        return mValues[index];
+    }
+}
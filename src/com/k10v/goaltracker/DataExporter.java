@@ -0,0 +1,257 @@
+package com.k10v.goaltracker;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+import android.database.Cursor;
+
+/**
+ * Exports all tasks and their reports. Cursors are walked row by row and
+ * values are written straight to the output channel, so memory usage doesn't
+ * depend on the amount of data.
+ */
+public class DataExporter {
+
+    /**
+     * Export format
+     */
+    public enum Format {
+
+        /**
+         * Reports only, one per line: task_id,task,date,value,relative
+         */
+        CSV("csv"),
+
+        /**
+         * Array of tasks with their details and reports
+         */
+        JSON("json");
+
+        private final String mExtension;
+
+        private Format(String extension) {
+            mExtension = extension;
+        }
+
+        public String getExtension() {
+            return mExtension;
+        }
+    }
+
+    /**
+     * Receives export progress
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called periodically during the export
+         *
+         * @param exported Number of exported reports
+         * @param total Total number of reports
+         * @return false if the export should be cancelled
+         */
+        boolean onProgress(int exported, int total);
+    }
+
+    /**
+     * How often (in reports) progress is reported
+     */
+    private static final int PROGRESS_STEP = 500;
+
+    private static final String HEX_DIGITS = "0123456789abcdef";
+
+    private GoalTrackerDbAdapter mDbHelper;
+    private Format mFormat;
+    private ProgressListener mProgressListener;
+
+    private ExportWriter mWriter;
+    private int mExported;
+    private int mTotal;
+
+    public DataExporter(GoalTrackerDbAdapter dbHelper, Format format) {
+        mDbHelper = dbHelper;
+        mFormat = format;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Export all the data to the given channel; channel is closed afterwards
+     *
+     * @param channel
+     * @return false if export was cancelled by the progress listener
+     * @throws IOException
+     */
+    public boolean export(WritableByteChannel channel) throws IOException {
+
+        mWriter = new ExportWriter(channel);
+        mExported = 0;
+        mTotal = mDbHelper.getReportPeer().countReports();
+
+        Cursor tasksCursor = mDbHelper.getTaskPeer().fetchAllTasks();
+        try {
+            return (mFormat == Format.CSV) ?
+                    exportCsv(tasksCursor) :
+                    exportJson(tasksCursor);
+        } finally {
+            tasksCursor.close();
+            mWriter.close();
+        }
+    }
+
+    private boolean exportCsv(Cursor tasksCursor) throws IOException {
+
+        int idIndex = tasksCursor.getColumnIndexOrThrow(TaskPeer.KEY_ID);
+        int titleIndex = tasksCursor.getColumnIndexOrThrow(TaskPeer.KEY_TITLE);
+
+        mWriter.write("task_id,task,date,value,relative\n");
+
+        while (tasksCursor.moveToNext()) {
+
+            long taskId = tasksCursor.getLong(idIndex);
+            String title = tasksCursor.getString(titleIndex);
+
+            Cursor c = mDbHelper.getReportPeer().fetchReportsByTask(taskId);
+            try {
+                int dateIndex = c.getColumnIndexOrThrow(ReportPeer.KEY_DATE);
+                int valueIndex = c.getColumnIndexOrThrow(ReportPeer.KEY_VALUE);
+                int relativeIndex = c.getColumnIndexOrThrow(ReportPeer.KEY_RELATIVE);
+
+                while (c.moveToNext()) {
+                    mWriter.write(taskId).write(',');
+                    writeCsvString(title);
+                    mWriter.write(',')
+                            .writeDate(c.getInt(dateIndex)).write(',')
+                            .writeNumber(c.getDouble(valueIndex)).write(',')
+                            .write(c.getInt(relativeIndex)).write('\n');
+                    if (!reportExported()) {
+                        return false;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        return true;
+    }
+
+    private boolean exportJson(Cursor tasksCursor) throws IOException {
+
+        int idIndex = tasksCursor.getColumnIndexOrThrow(TaskPeer.KEY_ID);
+        int titleIndex = tasksCursor.getColumnIndexOrThrow(TaskPeer.KEY_TITLE);
+        int startValueIndex = tasksCursor.getColumnIndexOrThrow(TaskPeer.KEY_START_VALUE);
+        int targetValueIndex = tasksCursor.getColumnIndexOrThrow(TaskPeer.KEY_TARGET_VALUE);
+
+        mWriter.write('[');
+
+        boolean isFirstTask = true;
+        while (tasksCursor.moveToNext()) {
+
+            long taskId = tasksCursor.getLong(idIndex);
+
+            mWriter.write(isFirstTask ? "\n{" : ",\n{");
+            isFirstTask = false;
+
+            mWriter.write("\"id\":").write(taskId);
+            mWriter.write(",\"title\":");
+            writeJsonString(tasksCursor.getString(titleIndex));
+            mWriter.write(",\"start_value\":").writeNumber(tasksCursor.getDouble(startValueIndex));
+            mWriter.write(",\"target_value\":");
+            if (tasksCursor.isNull(targetValueIndex)) {
+                mWriter.write("null");
+            } else {
+                mWriter.writeNumber(tasksCursor.getDouble(targetValueIndex));
+            }
+            mWriter.write(",\"reports\":[");
+
+            Cursor c = mDbHelper.getReportPeer().fetchReportsByTask(taskId);
+            try {
+                int dateIndex = c.getColumnIndexOrThrow(ReportPeer.KEY_DATE);
+                int valueIndex = c.getColumnIndexOrThrow(ReportPeer.KEY_VALUE);
+                int relativeIndex = c.getColumnIndexOrThrow(ReportPeer.KEY_RELATIVE);
+
+                boolean isFirstReport = true;
+                while (c.moveToNext()) {
+                    mWriter.write(isFirstReport ? "\n{" : ",\n{");
+                    isFirstReport = false;
+                    mWriter.write("\"date\":\"").writeDate(c.getInt(dateIndex))
+                            .write("\",\"value\":").writeNumber(c.getDouble(valueIndex))
+                            .write(",\"relative\":")
+                            .write(c.getInt(relativeIndex) != 0 ? "true" : "false")
+                            .write('}');
+                    if (!reportExported()) {
+                        return false;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+
+            mWriter.write("]}");
+        }
+
+        mWriter.write("\n]\n");
+
+        return true;
+    }
+
+    /**
+     * Count exported report and notify progress listener if necessary
+     *
+     * @return false if export should be cancelled
+     */
+    private boolean reportExported() {
+        mExported++;
+        if (mProgressListener != null && mExported % PROGRESS_STEP == 0) {
+            return mProgressListener.onProgress(mExported, mTotal);
+        }
+        return true;
+    }
+
+    private void writeCsvString(String s) throws IOException {
+        mWriter.write('"');
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                mWriter.write('"');
+            }
+            mWriter.write(c);
+        }
+        mWriter.write('"');
+    }
+
+    private void writeJsonString(String s) throws IOException {
+        mWriter.write('"');
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                mWriter.write("\\\"");
+                break;
+            case '\\':
+                mWriter.write("\\\\");
+                break;
+            case '\n':
+                mWriter.write("\\n");
+                break;
+            case '\r':
+                mWriter.write("\\r");
+                break;
+            case '\t':
+                mWriter.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    mWriter.write("\\u00").write(HEX_DIGITS.charAt(c >> 4))
+                            .write(HEX_DIGITS.charAt(c & 0xf));
+                } else {
+                    mWriter.write(c);
+                }
+            }
+        }
+        mWriter.write('"');
+    }
+}
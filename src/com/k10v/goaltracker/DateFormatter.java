@@ -0,0 +1,146 @@
+package com.k10v.goaltracker;
+
+import java.util.Calendar;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.SparseArray;
+
+/**
+ * Formats dates (epoch days) for display and remembers formatted dates, so
+ * that the same date is formatted only once. Today's date is shown as
+ * "Today", dates of the current year are shown without the year.
+ *
+ * Formatted dates are forgotten at midnight and when the time, time zone or
+ * locale change. Instances are thread-safe.
+ */
+public class DateFormatter {
+
+    /**
+     * Cache is cleared when it grows to this number of dates
+     */
+    private static final int MAX_CACHED_DATES = 1000;
+
+    private static DateFormatter sInstance;
+
+    private final Context mContext;
+    private final SparseArray<String> mLabels = new SparseArray<String>();
+    private Calendar mCalendar;
+
+    private int mToday;
+    private int mCurrentYear;
+
+    // Labels are valid between these moments (ms)
+    private long mDayStart = 0;
+    private long mDayEnd = 0;
+
+    /**
+     * Incremented every time the cache is cleared
+     */
+    private int mGeneration = 0;
+
+    private DateFormatter(Context context) {
+        mContext = context;
+
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_DATE_CHANGED);
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        context.registerReceiver(receiver, filter);
+    }
+
+    /**
+     * Returns the formatter shared by the whole application
+     *
+     * @param context
+     * @return
+     */
+    public static synchronized DateFormatter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DateFormatter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param epochDay
+     * @return
+     */
+    public synchronized String format(int epochDay) {
+
+        checkToday();
+
+        String label = mLabels.get(epochDay);
+        if (label == null) {
+            if (mLabels.size() >= MAX_CACHED_DATES) {
+                mLabels.clear();
+            }
+            label = formatUncached(epochDay);
+            mLabels.put(epochDay, label);
+        }
+        return label;
+    }
+
+    /**
+     * Returns a number which changes every time formatted dates are
+     * forgotten, so that users keeping their own copies of labels know when
+     * to drop them
+     *
+     * @return
+     */
+    public synchronized int getGeneration() {
+        checkToday();
+        return mGeneration;
+    }
+
+    /**
+     * Forget formatted dates, e.g. when the time zone has changed
+     */
+    public synchronized void invalidate() {
+        mDayStart = mDayEnd = 0;
+    }
+
+    /**
+     * Clear the cache if the day is over (or the clock was turned back)
+     */
+    private void checkToday() {
+
+        long now = System.currentTimeMillis();
+        if (mDayStart <= now && now < mDayEnd) {
+            return;
+        }
+
+        // Time zone may have changed, so use a new calendar
+        mCalendar = Calendar.getInstance();
+        mToday = Util.toEpochDay(mCalendar);
+        mCurrentYear = mCalendar.get(Calendar.YEAR);
+
+        Util.setEpochDay(mCalendar, mToday);
+        mDayStart = mCalendar.getTimeInMillis();
+        Util.setEpochDay(mCalendar, mToday + 1);
+        mDayEnd = mCalendar.getTimeInMillis();
+
+        mLabels.clear();
+        mGeneration++;
+    }
+
+    private String formatUncached(int epochDay) {
+
+        if (epochDay == mToday) {
+            return mContext.getString(R.string.date_today);
+        }
+
+        Util.setEpochDay(mCalendar, epochDay);
+        String format = mCalendar.get(Calendar.YEAR) == mCurrentYear ? "MMM d" : "MMM d, yyyy";
+        return android.text.format.DateFormat.format(format, mCalendar).toString();
+    }
+}
@@ -0,0 +1,326 @@
+package com.k10v.goaltracker;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Performs database writes in a single background thread, in the order they
+ * were submitted. Writes which are submitted close together are committed in
+ * one transaction; if such a transaction fails, it's rolled back and the
+ * writes are retried one by one, so a failing write doesn't affect others.
+ *
+ * Writes may use nested transactions, but must not swallow exceptions thrown
+ * inside them (otherwise the whole batch is silently rolled back).
+ *
+ * The database is obtained from a provider before each batch, in the writer
+ * thread, so submitting a write never waits for the database to be opened.
+ */
+public class DbWriteQueue {
+
+    private static final String TAG = "DbWriteQueue";
+
+    /**
+     * How long (in milliseconds) to wait for more writes before committing
+     * the batch
+     */
+    private static final long BATCH_WINDOW = 20;
+
+    /**
+     * Max number of writes committed in one transaction
+     */
+    private static final int MAX_BATCH_SIZE = 50;
+
+    /**
+     * Receives result of a write, methods are called in the main thread
+     */
+    public interface Callback<T> {
+
+        /**
+         * Called after the write is committed
+         *
+         * @param result Value returned by the write
+         */
+        void onSuccess(T result);
+
+        /**
+         * Called if the write has thrown an exception
+         *
+         * @param e
+         */
+        void onFailure(Exception e);
+    }
+
+    /**
+     * Notified when a transaction wrapping a batch of writes ends, so that
+     * writes running inside it know whether their changes were committed.
+     * Called in the writer thread.
+     */
+    public interface TransactionListener {
+
+        /**
+         * @param isCommitted false if the transaction has been rolled back
+         */
+        void onTransactionEnd(boolean isCommitted);
+    }
+
+    /**
+     * Gives the writer thread an open database
+     */
+    public interface DatabaseProvider {
+
+        /**
+         * Called in the writer thread before each batch of writes
+         *
+         * @return open database
+         * @throws SQLException if the database can't be opened
+         */
+        SQLiteDatabase getDatabase() throws SQLException;
+    }
+
+    /**
+     * Write which does nothing, used for markers in the queue
+     */
+    private static final Callable<Void> NO_WRITE = new Callable<Void>() {
+        @Override
+        public Void call() {
+            return null;
+        }
+    };
+
+    private final DatabaseProvider mDbProvider;
+    private final LinkedBlockingQueue<WriteTask<?>> mQueue =
+            new LinkedBlockingQueue<WriteTask<?>>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<TransactionListener> mTransactionListeners =
+            new CopyOnWriteArrayList<TransactionListener>();
+    private Thread mThread;
+
+    public DbWriteQueue(DatabaseProvider dbProvider) {
+        mDbProvider = dbProvider;
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processQueue();
+            }
+        }, "GoalTrackerDbWriter");
+        mThread.start();
+    }
+
+    public void addTransactionListener(TransactionListener listener) {
+        mTransactionListeners.add(listener);
+    }
+
+    public void removeTransactionListener(TransactionListener listener) {
+        mTransactionListeners.remove(listener);
+    }
+
+    /**
+     * Queue the write
+     *
+     * @param write
+     * @param callback Optional callback which receives the result in the main
+     *        thread
+     * @return Future which can be used to wait for the result
+     */
+    public <T> Future<T> submit(Callable<T> write, Callback<T> callback) {
+        WriteTask<T> task = new WriteTask<T>(write, callback, false);
+        mQueue.add(task);
+        return task;
+    }
+
+    public <T> Future<T> submit(Callable<T> write) {
+        return submit(write, null);
+    }
+
+    /**
+     * Run the given code in the main thread after all the writes queued so
+     * far are committed (e.g. to reload data changed by them)
+     *
+     * @param runnable
+     */
+    public void runAfterWrites(final Runnable runnable) {
+        submit(NO_WRITE, new Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                runnable.run();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                runnable.run();
+            }
+        });
+    }
+
+    /**
+     * Run the given code in the writer thread after all the writes queued so
+     * far, outside of any transaction and before any later write (e.g. to
+     * close the database without blocking the calling thread)
+     *
+     * @param runnable
+     */
+    public void runBetweenWrites(final Runnable runnable) {
+        mQueue.add(new WriteTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                runnable.run();
+                return null;
+            }
+        }, null, true));
+    }
+
+    private void processQueue() {
+        ArrayList<WriteTask<?>> batch = new ArrayList<WriteTask<?>>(MAX_BATCH_SIZE);
+        while (true) {
+            WriteTask<?> exclusiveTask = null;
+            try {
+                // Wait for the first write, then collect all writes which
+                // arrive shortly after it
+                WriteTask<?> task = mQueue.take();
+                while (task != null) {
+                    if (task.mIsExclusive) {
+                        exclusiveTask = task;
+                        break;
+                    }
+                    if (!task.isCancelled()) {
+                        batch.add(task);
+                    }
+                    if (batch.size() >= MAX_BATCH_SIZE) {
+                        break;
+                    }
+                    task = mQueue.poll(BATCH_WINDOW, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                // Process what we have got so far
+            }
+            if (!batch.isEmpty()) {
+                processBatch(batch);
+                batch.clear();
+            }
+            if (exclusiveTask != null) {
+                runSingle(exclusiveTask);
+            }
+        }
+    }
+
+    private void processBatch(ArrayList<WriteTask<?>> batch) {
+        if (batch.size() > 1 && runInTransaction(batch)) {
+            return;
+        }
+        for (WriteTask<?> task : batch) {
+            runSingle(task);
+        }
+    }
+
+    /**
+     * Run all writes in a single transaction
+     *
+     * @param batch
+     * @return false if the transaction has been rolled back
+     */
+    private boolean runInTransaction(ArrayList<WriteTask<?>> batch) {
+        Object[] results = new Object[batch.size()];
+        try {
+            SQLiteDatabase db = mDbProvider.getDatabase();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < results.length; i++) {
+                    results[i] = batch.get(i).mWrite.call();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Batch of " + results.length + " writes failed, retrying one by one", e);
+            notifyTransactionEnd(false);
+            return false;
+        }
+        notifyTransactionEnd(true);
+        for (int i = 0; i < results.length; i++) {
+            batch.get(i).complete(results[i]);
+        }
+        return true;
+    }
+
+    private void notifyTransactionEnd(boolean isCommitted) {
+        for (TransactionListener listener : mTransactionListeners) {
+            listener.onTransactionEnd(isCommitted);
+        }
+    }
+
+    private <T> void runSingle(WriteTask<T> task) {
+        T result;
+        try {
+            result = task.mWrite.call();
+        } catch (Exception e) {
+            Log.e(TAG, "Write failed", e);
+            task.fail(e);
+            return;
+        }
+        task.complete(result);
+    }
+
+    /**
+     * Queued write together with its callback
+     */
+    private class WriteTask<T> extends FutureTask<T> {
+
+        private final Callable<T> mWrite;
+        private final Callback<T> mCallback;
+        private final boolean mIsExclusive;
+
+        public WriteTask(Callable<T> write, Callback<T> callback, boolean isExclusive) {
+            super(write);
+            mWrite = write;
+            mCallback = callback;
+            mIsExclusive = isExclusive;
+        }
+
+        @SuppressWarnings("unchecked")
+        public void complete(Object result) {
+            final T value = (T) result;
+            set(value);
+            if (mCallback != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onSuccess(value);
+                    }
+                });
+            }
+        }
+
+        public void fail(final Exception e) {
+            setException(e);
+            if (mCallback != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onFailure(e);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.k10v.goaltracker;
 
+import java.util.concurrent.Callable;
+
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -43,7 +45,6 @@ abstract public class DeleteReportDialogBuilder extends AlertDialog.Builder {
                     public void onClick(DialogInterface dialog, int which) {
                         dialog.dismiss();
                         doDeleteReport();
-                        afterDeleteReport();
                     }
                 });
 
@@ -59,22 +60,44 @@ abstract public class DeleteReportDialogBuilder extends AlertDialog.Builder {
     }
 
     /**
-     * Delete report from the database
+     * Delete report from the database; the report is deleted in background
+     * and afterDeleteReport() is called when it's done
      */
     private void doDeleteReport() {
 
-        // Delete the report
-        mDbHelper.getReportPeer().deleteReport(mRowId);
+        final Context context = mContext.getApplicationContext();
+        final GoalTrackerDbAdapter dbHelper = mDbHelper;
+        final long rowId = mRowId;
 
-        // Show message
-        Toast toast = Toast.makeText(mContext.getApplicationContext(),
-                R.string.message_report_deleted, Toast.LENGTH_SHORT);
-        toast.show();
+        mDbHelper.getWriteQueue().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return dbHelper.getReportPeer().deleteReport(rowId);
+            }
+        }, new DbWriteQueue.Callback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean isDeleted) {
+                if (isDeleted) {
+                    // Show message
+                    Toast toast = Toast.makeText(context,
+                            R.string.message_report_deleted, Toast.LENGTH_SHORT);
+                    toast.show();
+                }
+                afterDeleteReport();
+            }
 
+            @Override
+            public void onFailure(Exception e) {
+                Toast toast = Toast.makeText(context,
+                        R.string.message_save_failed, Toast.LENGTH_SHORT);
+                toast.show();
+            }
+        });
     }
 
     /**
-     * Actions that should be performed after report is deleted
+     * Actions that should be performed after report is deleted (called in the
+     * main thread when the delete is committed)
      */
     abstract public void afterDeleteReport();
 }
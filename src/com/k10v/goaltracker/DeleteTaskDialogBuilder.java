@@ -43,7 +43,6 @@ abstract public class DeleteTaskDialogBuilder extends AlertDialog.Builder {
                     public void onClick(DialogInterface dialog, int which) {
                         dialog.dismiss();
                         doDeleteTask();
-                        afterDeleteTask();
                     }
                 });
 
@@ -59,22 +58,40 @@ abstract public class DeleteTaskDialogBuilder extends AlertDialog.Builder {
     }
 
     /**
-     * Delete task from the database
+     * Delete task from the database; task is hidden right away and its
+     * reports are deleted in background
      */
     private void doDeleteTask() {
 
-        // Delete the task
-        mDbHelper.getTaskPeer().deleteTask(mRowId);
+        final Context context = mContext.getApplicationContext();
 
-        // Show message
-        Toast toast = Toast.makeText(mContext.getApplicationContext(),
-                R.string.message_task_deleted, Toast.LENGTH_SHORT);
-        toast.show();
+        mDbHelper.deleteTaskInBackground(mRowId, new DbWriteQueue.Callback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean isDeleted) {
+                if (!isDeleted) {
+                    // Task didn't exist or was already deleted
+                    return;
+                }
 
+                // Show message
+                Toast toast = Toast.makeText(context,
+                        R.string.message_task_deleted, Toast.LENGTH_SHORT);
+                toast.show();
+                afterDeleteTask();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Toast toast = Toast.makeText(context,
+                        R.string.message_save_failed, Toast.LENGTH_SHORT);
+                toast.show();
+            }
+        });
     }
 
     /**
-     * Actions that should be performed after task is deleted
+     * Actions that should be performed after task is deleted (called in the
+     * main thread when the task is hidden)
      */
     abstract public void afterDeleteTask();
 }
@@ -0,0 +1,116 @@
+package com.k10v.goaltracker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Environment;
+import android.util.Log;
+import android.widget.Toast;
+
+/**
+ * Exports all data to a file on the external storage in background, progress
+ * is displayed in a dialog
+ */
+public class ExportTask extends AsyncTask<Void, Integer, File> {
+
+    private static final String TAG = "ExportTask";
+
+    private Context mContext;
+    private DataExporter.Format mFormat;
+    private ProgressDialog mProgressDialog;
+
+    public ExportTask(Context context, DataExporter.Format format) {
+        mContext = context;
+        mFormat = format;
+    }
+
+    @Override
+    protected void onPreExecute() {
+        mProgressDialog = new ProgressDialog(mContext);
+        mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mProgressDialog.setMessage(mContext.getString(R.string.export_progress));
+        mProgressDialog.setCancelable(false);
+        mProgressDialog.show();
+    }
+
+    @Override
+    protected File doInBackground(Void... params) {
+
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            return null;
+        }
+
+        String fileName = "goaltracker-"
+                + android.text.format.DateFormat.format("yyyyMMdd", Calendar.getInstance())
+                + "." + mFormat.getExtension();
+        File file = new File(Environment.getExternalStorageDirectory(), fileName);
+
+        GoalTrackerDbAdapter dbHelper = GoalTrackerDbAdapter.acquire(mContext);
+
+        boolean isExported = false;
+        try {
+            DataExporter exporter = new DataExporter(dbHelper, mFormat);
+            exporter.setProgressListener(new DataExporter.ProgressListener() {
+                @Override
+                public boolean onProgress(int exported, int total) {
+                    publishProgress(exported, total);
+                    return !isCancelled();
+                }
+            });
+            isExported = exporter.export(new FileOutputStream(file).getChannel());
+        } catch (IOException e) {
+            Log.e(TAG, "Export failed", e);
+        } catch (RuntimeException e) {
+            // E.g. SQLException, the user should still be told that export failed
+            Log.e(TAG, "Export failed", e);
+        } finally {
+            dbHelper.release();
+        }
+
+        if (!isExported) {
+            file.delete();
+            return null;
+        }
+        return file;
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        if (mProgressDialog != null) {
+            mProgressDialog.setMax(values[1]);
+            mProgressDialog.setProgress(values[0]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(File file) {
+        dismissProgressDialog();
+        Toast toast = (file == null) ?
+                Toast.makeText(mContext.getApplicationContext(),
+                        R.string.message_export_failed, Toast.LENGTH_LONG) :
+                Toast.makeText(mContext.getApplicationContext(),
+                        mContext.getString(R.string.message_export_done, file.getPath()),
+                        Toast.LENGTH_LONG);
+        toast.show();
+    }
+
+    /**
+     * Stop the export, e.g. when activity is destroyed
+     */
+    public void abort() {
+        cancel(false);
+        dismissProgressDialog();
+    }
+
+    private void dismissProgressDialog() {
+        if (mProgressDialog != null) {
+            mProgressDialog.dismiss();
+            mProgressDialog = null;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.k10v.goaltracker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes UTF-8 text to a channel through a fixed-size buffer. Numbers and
+ * dates are written digit by digit, so writing a row doesn't create any
+ * objects.
+ */
+public class ExportWriter {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Numbers are written with up to this many decimal places
+     */
+    private static final int DECIMAL_PLACES = 6;
+    private static final double DECIMAL_SCALE = 1e6;
+
+    /**
+     * Numbers which absolute value is bigger than this are written with
+     * Double.toString()
+     */
+    private static final double MAX_SCALED_NUMBER = 1e12;
+
+    private WritableByteChannel mChannel;
+    private ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private char mHighSurrogate = 0;
+
+    // Scratch space for digits
+    private char[] mDigits = new char[20];
+
+    public ExportWriter(WritableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    public ExportWriter write(char c) throws IOException {
+
+        if (mBuffer.remaining() < 4) {
+            flush();
+        }
+
+        if (Character.isHighSurrogate(c)) {
+            mHighSurrogate = c;
+            return this;
+        }
+
+        int codePoint = c;
+        if (mHighSurrogate != 0) {
+            if (Character.isLowSurrogate(c)) {
+                codePoint = Character.toCodePoint(mHighSurrogate, c);
+            }
+            mHighSurrogate = 0;
+        }
+
+        if (codePoint < 0x80) {
+            mBuffer.put((byte) codePoint);
+        } else if (codePoint < 0x800) {
+            mBuffer.put((byte) (0xc0 | (codePoint >> 6)));
+            mBuffer.put((byte) (0x80 | (codePoint & 0x3f)));
+        } else if (codePoint < 0x10000) {
+            mBuffer.put((byte) (0xe0 | (codePoint >> 12)));
+            mBuffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+            mBuffer.put((byte) (0x80 | (codePoint & 0x3f)));
+        } else {
+            mBuffer.put((byte) (0xf0 | (codePoint >> 18)));
+            mBuffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+            mBuffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+            mBuffer.put((byte) (0x80 | (codePoint & 0x3f)));
+        }
+        return this;
+    }
+
+    public ExportWriter write(String s) throws IOException {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            write(s.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Write a non-negative number, left-padded with zeros to the given width
+     *
+     * @param number
+     * @param width
+     * @return
+     * @throws IOException
+     */
+    public ExportWriter write(long number, int width) throws IOException {
+        if (number < 0) {
+            write('-');
+            number = -number;
+        }
+        int length = 0;
+        do {
+            mDigits[length++] = (char) ('0' + number % 10);
+            number /= 10;
+        } while (number > 0);
+        for (int i = length; i < width; i++) {
+            write('0');
+        }
+        while (length > 0) {
+            write(mDigits[--length]);
+        }
+        return this;
+    }
+
+    public ExportWriter write(long number) throws IOException {
+        return write(number, 1);
+    }
+
+    /**
+     * Write a number with up to 6 decimal places, trailing zeros are stripped
+     *
+     * @param number
+     * @return
+     * @throws IOException
+     */
+    public ExportWriter writeNumber(double number) throws IOException {
+
+        if (Double.isNaN(number) || Double.isInfinite(number)
+                || MAX_SCALED_NUMBER < Math.abs(number)) {
+            return write(Double.toString(number));
+        }
+
+        long scaled = Math.round(number * DECIMAL_SCALE);
+        if (scaled < 0) {
+            write('-');
+            scaled = -scaled;
+        }
+
+        long integerPart = scaled / (long) DECIMAL_SCALE;
+        long fraction = scaled % (long) DECIMAL_SCALE;
+        write(integerPart);
+
+        if (fraction != 0) {
+            int places = DECIMAL_PLACES;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                places--;
+            }
+            write('.');
+            write(fraction, places);
+        }
+        return this;
+    }
+
+    /**
+     * Write epoch day as a yyyy-MM-dd date
+     *
+     * @param epochDay
+     * @return
+     * @throws IOException
+     */
+    public ExportWriter writeDate(int epochDay) throws IOException {
+        int ymd = Util.toYmd(epochDay);
+        write(Util.ymdYear(ymd), 4);
+        write('-');
+        write(Util.ymdMonth(ymd), 2);
+        write('-');
+        write(Util.ymdDay(ymd), 2);
+        return this;
+    }
+
+    /**
+     * Write buffered data to the channel
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Flush buffered data and close the channel
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mChannel.close();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.k10v.goaltracker;
+
+/**
+ * Snapshot of what should be drawn in a frame: the data and the state of the
+ * pointers. The UI thread publishes a new instance for every change, the
+ * drawing thread always draws the latest one.
+ */
+public final class FrameState {
+
+    /**
+     * Null until the data is loaded
+     */
+    public final GraphData data;
+
+    public final boolean isTouched;
+    public final float pointer1X;
+    public final float pointer1Y;
+    public final float pointer2X;
+    public final float pointer2Y;
+
+    public FrameState(GraphData data, boolean isTouched,
+            float pointer1X, float pointer1Y, float pointer2X, float pointer2Y) {
+        this.data = data;
+        this.isTouched = isTouched;
+        this.pointer1X = pointer1X;
+        this.pointer1Y = pointer1Y;
+        this.pointer2X = pointer2X;
+        this.pointer2Y = pointer2Y;
+    }
+
+    /**
+     * Returns a copy of the state with other data
+     *
+     * @param data
+     * @return
+     */
+    public FrameState withData(GraphData data) {
+        return new FrameState(data, isTouched, pointer1X, pointer1Y, pointer2X, pointer2Y);
+    }
+}
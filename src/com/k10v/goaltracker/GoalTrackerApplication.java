@@ -0,0 +1,15 @@
+package com.k10v.goaltracker;
+
+import android.app.Application;
+
+public class GoalTrackerApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Database is shared by all activities; start opening it right away so
+        // that the first activity doesn't have to wait for it
+        GoalTrackerDbAdapter.openInBackground(this);
+    }
+}
@@ -1,21 +1,78 @@
 package com.k10v.goaltracker;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import android.content.Context;
+import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 public class GoalTrackerDbAdapter {
 
     private static final String TAG = "GoalTrackerDbAdapter";
+
+    /**
+     * Delay (in milliseconds) before the database is closed after the last
+     * user has released it
+     */
+    private static final long CLOSE_DELAY = 5000;
+
+    /**
+     * Number of reports of a deleted task removed in one transaction
+     */
+    private static final int PURGE_CHUNK_SIZE = 500;
+
+    private static GoalTrackerDbAdapter sInstance;
+
     private final Context mCtx;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mCloseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Closed in the writer thread after pending writes, so that the
+            // main thread doesn't wait for them
+            mWriteQueue.runBetweenWrites(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+        }
+    };
+    private final DbWriteQueue mWriteQueue;
+    // Held while the database is being opened or closed, which may take long
+    // (e.g. upgrade); the adapter itself is locked only briefly
+    private final Object mOpenLock = new Object();
+    private int mReferenceCount = 0;
+    private boolean mIsOpening = false;
+    // Whether a chain of purge chunks is queued, only one runs at a time;
+    // if a purge is requested meanwhile, the chain makes one more pass
+    private boolean mIsPurging = false;
+    private boolean mIsPurgeRequested = false;
     private DatabaseHelper mDbHelper;
-    private SQLiteDatabase mDb;
+    // Set only after everything else is ready, so getters don't need a lock
+    // once the database is open (the writer thread uses them too)
+    private volatile SQLiteDatabase mDb;
     private TaskPeer taskPeer;
     private ReportPeer reportPeer;
+    private TaskStatsPeer taskStatsPeer;
+    private ReportRollupPeer reportRollupPeer;
 
-    private static final int DATABASE_VERSION = 1;
+    /**
+     * Listeners of report changes; kept here and not in ReportPeer because
+     * peers are created again when the database is reopened
+     */
+    private final CopyOnWriteArrayList<ReportPeer.ChangeListener> mReportChangeListeners =
+            new CopyOnWriteArrayList<ReportPeer.ChangeListener>();
+
+    private static final int DATABASE_VERSION = 5;
 
     private static final String DATABASE_NAME = "goaltracker";
 
@@ -33,15 +90,72 @@ public class GoalTrackerDbAdapter {
                     + "_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
                     + "title TEXT NOT NULL, "
                     + "start_value NUMERIC NOT NULL DEFAULT 0, "
-                    + "target_value NUMERIC DEFAULT NULL"
+                    + "target_value NUMERIC DEFAULT NULL, "
+                    + "deleted INTEGER NOT NULL DEFAULT 0"
                     + ")");
             db.execSQL("CREATE INDEX idx_tasks_title ON tasks (title)");
 
             // == Reports ==
+            createReportsTable(db);
+
+            // == Task statistics ==
+            createTaskStatsTable(db);
+
+            // == Report rollups ==
+            createReportRollupsTable(db);
+
+            createTaskDeleteTrigger(db);
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+
+            // Write-ahead log lets readers proceed while the writer thread
+            // commits and needs fewer syncs per commit. Since API 11 it must be
+            // enabled through the framework, which also lets it use more than
+            // one connection; older SQLite versions which don't support it
+            // just keep the current journal mode.
+            Cursor c;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                db.enableWriteAheadLogging();
+            } else {
+                c = db.rawQuery("PRAGMA journal_mode=WAL", null);
+                c.close();
+            }
+            c = db.rawQuery("PRAGMA synchronous=NORMAL", null);
+            c.close();
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                    + newVersion);
+            if (oldVersion < 2) {
+                upgradeToVersion2(db);
+            }
+            if (oldVersion < 3) {
+                upgradeToVersion3(db);
+            }
+            if (oldVersion < 4) {
+                upgradeToVersion4(db);
+            }
+            if (oldVersion < 5) {
+                upgradeToVersion5(db);
+            }
+        }
+
+        /**
+         * Creates "reports" table; report's date is stored as a number of days
+         * since 1970-01-01 (see Util.toEpochDay())
+         *
+         * @param db
+         */
+        private void createReportsTable(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE reports ("
                     + "_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
                     + "task_id INTEGER NOT NULL, "
-                    + "date TEXT NOT NULL, "
+                    + "date INTEGER NOT NULL, "
                     + "relative INTEGER NOT NULL DEFAULT 0, "
                     + "value NUMERIC NOT NULL"
                     + ")");
@@ -49,13 +163,111 @@ public class GoalTrackerDbAdapter {
                     + "task_id, date)");
         }
 
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS tasks");
-            db.execSQL("DROP TABLE IF EXISTS reports");
-            onCreate(db);
+        /**
+         * Version 2: report dates are converted from "yyyy-MM-dd" strings to
+         * epoch days (reports with invalid dates are dropped, they were
+         * ignored by the graph anyway)
+         *
+         * @param db
+         */
+        private void upgradeToVersion2(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE reports RENAME TO reports_v1");
+            db.execSQL("DROP INDEX IF EXISTS idx_reports_task_date");
+            createReportsTable(db);
+            db.execSQL("INSERT INTO reports (_id, task_id, date, relative, value) "
+                    + "SELECT _id, task_id, "
+                    + "CAST(julianday(date) - 2440587.5 AS INTEGER), "
+                    + "relative, value FROM reports_v1 "
+                    + "WHERE julianday(date) IS NOT NULL");
+            db.execSQL("DROP TABLE reports_v1");
+        }
+
+        /**
+         * Creates "task_stats" table, see TaskStatsPeer; tasks without
+         * reports don't have statistics
+         *
+         * @param db
+         */
+        private void createTaskStatsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE task_stats ("
+                    + "task_id INTEGER PRIMARY KEY NOT NULL, "
+                    + "report_count INTEGER NOT NULL DEFAULT 0, "
+                    + "min_value NUMERIC, "
+                    + "max_value NUMERIC, "
+                    + "last_value NUMERIC, "
+                    + "first_date INTEGER, "
+                    + "last_date INTEGER"
+                    + ")");
+        }
+
+        /**
+         * Version 3: statistics of existing tasks are calculated
+         *
+         * @param db
+         */
+        private void upgradeToVersion3(SQLiteDatabase db) {
+            createTaskStatsTable(db);
+            db.execSQL(TaskStatsPeer.SQL_REBUILD_ALL);
+        }
+
+        /**
+         * Creates "report_rollups" table, see ReportRollupPeer; period is the
+         * epoch day of the first day of the week/month
+         *
+         * @param db
+         */
+        private void createReportRollupsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE report_rollups ("
+                    + "task_id INTEGER NOT NULL, "
+                    + "resolution INTEGER NOT NULL, "
+                    + "period INTEGER NOT NULL, "
+                    + "first_date INTEGER NOT NULL, "
+                    + "first_value NUMERIC NOT NULL, "
+                    + "last_date INTEGER NOT NULL, "
+                    + "last_value NUMERIC NOT NULL, "
+                    + "min_value NUMERIC NOT NULL, "
+                    + "max_value NUMERIC NOT NULL, "
+                    + "report_count INTEGER NOT NULL, "
+                    + "PRIMARY KEY (task_id, resolution, period)"
+                    + ")");
+        }
+
+        /**
+         * Version 4: weekly and monthly rollups of existing reports are
+         * calculated
+         *
+         * @param db
+         */
+        private void upgradeToVersion4(SQLiteDatabase db) {
+            createReportRollupsTable(db);
+            ReportRollupPeer.rebuildAll(db);
+        }
+
+        /**
+         * Creates trigger which deletes all data of a task together with the
+         * task, in the same transaction (foreign keys are not enforced by
+         * SQLite on older devices, so a trigger is used instead)
+         *
+         * @param db
+         */
+        private void createTaskDeleteTrigger(SQLiteDatabase db) {
+            db.execSQL("CREATE TRIGGER trg_tasks_delete AFTER DELETE ON tasks "
+                    + "BEGIN "
+                    + "DELETE FROM reports WHERE task_id = OLD._id; "
+                    + "DELETE FROM task_stats WHERE task_id = OLD._id; "
+                    + "DELETE FROM report_rollups WHERE task_id = OLD._id; "
+                    + "END");
+        }
+
+        /**
+         * Version 5: tasks can be marked as deleted (their data is then
+         * deleted in background), task data is deleted by a trigger
+         *
+         * @param db
+         */
+        private void upgradeToVersion5(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE tasks ADD COLUMN deleted INTEGER NOT NULL DEFAULT 0");
+            createTaskDeleteTrigger(db);
         }
     }
 
@@ -65,35 +277,302 @@ public class GoalTrackerDbAdapter {
      *
      * @param ctx the Context within which to work
      */
-    public GoalTrackerDbAdapter(Context ctx) {
+    private GoalTrackerDbAdapter(Context ctx) {
         this.mCtx = ctx;
+        mWriteQueue = new DbWriteQueue(new DbWriteQueue.DatabaseProvider() {
+            @Override
+            public SQLiteDatabase getDatabase() throws SQLException {
+                ensureOpen();
+                return mDb;
+            }
+        });
+        mWriteQueue.start();
+    }
+
+    /**
+     * Returns the adapter shared by the whole application (the database is
+     * not necessarily open yet, use acquire() to get an open adapter)
+     *
+     * @param context
+     * @return shared adapter
+     */
+    public static synchronized GoalTrackerDbAdapter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GoalTrackerDbAdapter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the shared adapter. The database is not opened here (so that
+     * activities can call it in onCreate()), opening is started in a
+     * background thread instead; the database is opened at the latest by the
+     * first call of a peer getter, which should therefore be done in a
+     * background thread (the write queue can be used in any thread). Every call
+     * must be paired with release() when the caller doesn't need the
+     * database anymore.
+     *
+     * @param context
+     * @return shared adapter
+     */
+    public static GoalTrackerDbAdapter acquire(Context context) {
+        GoalTrackerDbAdapter adapter = getInstance(context);
+        boolean isAcquired = false;
+        synchronized (adapter) {
+            adapter.mReferenceCount++;
+            try {
+                adapter.mHandler.removeCallbacks(adapter.mCloseRunnable);
+                if (adapter.mDb == null && !adapter.mIsOpening) {
+                    openInBackground(context);
+                }
+                isAcquired = true;
+            } finally {
+                if (!isAcquired) {
+                    adapter.mReferenceCount--;
+                }
+            }
+        }
+        return adapter;
+    }
+
+    /**
+     * Start opening the database in a background thread, so that it's ready
+     * when it's used for the first time
+     *
+     * @param context
+     */
+    public static void openInBackground(Context context) {
+        final GoalTrackerDbAdapter adapter = getInstance(context);
+        synchronized (adapter) {
+            adapter.mIsOpening = true;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    adapter.ensureOpen();
+                } catch (SQLException e) {
+                    Log.e(TAG, "Can't open database", e);
+                } finally {
+                    synchronized (adapter) {
+                        adapter.mIsOpening = false;
+                    }
+                }
+            }
+        }, "GoalTrackerDbOpen").start();
     }
 
     /**
-     * Open the goaltracker database. If it cannot be opened, try to create a
-     * new instance of the database. If it cannot be created, throw an exception
-     * to signal the failure
+     * Release the adapter obtained by acquire(). When the adapter is not used
+     * anymore, the database is closed after a short delay (so that e.g.
+     * activity restart doesn't reopen it).
+     */
+    public synchronized void release() {
+        if (mReferenceCount <= 0) {
+            Log.w(TAG, "Database adapter released more times than acquired");
+            return;
+        }
+        mReferenceCount--;
+        if (mReferenceCount == 0) {
+            mHandler.postDelayed(mCloseRunnable, CLOSE_DELAY);
+        }
+    }
+
+    /**
+     * Open the goaltracker database unless it's already open. If it cannot be
+     * opened, try to create a new instance of the database. If it cannot be
+     * created, throw an exception to signal the failure
      *
-     * @return this
      * @throws SQLException if the database could be neither opened or created
      */
-    public GoalTrackerDbAdapter open() throws SQLException {
-        mDbHelper = new DatabaseHelper(mCtx);
-        mDb = mDbHelper.getWritableDatabase();
-        taskPeer = new TaskPeer(this, mDb);
-        reportPeer = new ReportPeer(this, mDb);
-        return this;
+    private void ensureOpen() throws SQLException {
+        if (mDb == null) {
+            open();
+        }
+    }
+
+    private void open() throws SQLException {
+        synchronized (mOpenLock) {
+            if (mDb != null) {
+                return;
+            }
+            mDbHelper = new DatabaseHelper(mCtx);
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            taskPeer = new TaskPeer(this, db);
+            reportPeer = new ReportPeer(this, db);
+            taskStatsPeer = new TaskStatsPeer(this, db);
+            reportRollupPeer = new ReportRollupPeer(this, db);
+            mWriteQueue.addTransactionListener(reportPeer);
+            mDb = db;
+        }
+
+        synchronized (this) {
+            if (mReferenceCount == 0) {
+                // Opened only by the writer thread, close it again when it's
+                // done
+                mHandler.postDelayed(mCloseRunnable, CLOSE_DELAY);
+            }
+        }
+
+        // Finish deleting tasks which were not fully deleted last time
+        purgeDeletedTasks();
     }
 
-    public void close() {
-        mDbHelper.close();
+    /**
+     * Close the database unless the adapter has been acquired again; must be
+     * called in the writer thread, between writes
+     */
+    private void close() {
+        synchronized (mOpenLock) {
+            synchronized (this) {
+                if (mDb == null || mReferenceCount > 0) {
+                    return;
+                }
+                mDb = null;
+            }
+            mWriteQueue.removeTransactionListener(reportPeer);
+            taskPeer.close();
+            reportPeer.close();
+            taskStatsPeer.close();
+            reportRollupPeer.close();
+            mDbHelper.close();
+        }
     }
 
-    public TaskPeer getTaskPeer() {
+    /**
+     * Peer getters open the database if it's not open yet
+     *
+     * @return
+     * @throws SQLException if the database could be neither opened or created
+     */
+    public TaskPeer getTaskPeer() throws SQLException {
+        ensureOpen();
         return taskPeer;
     }
 
-    public ReportPeer getReportPeer() {
+    public ReportPeer getReportPeer() throws SQLException {
+        ensureOpen();
         return reportPeer;
     }
+
+    public TaskStatsPeer getTaskStatsPeer() throws SQLException {
+        ensureOpen();
+        return taskStatsPeer;
+    }
+
+    public ReportRollupPeer getReportRollupPeer() throws SQLException {
+        ensureOpen();
+        return reportRollupPeer;
+    }
+
+    /**
+     * Register a listener which receives committed changes of reports in the
+     * main thread
+     *
+     * @param listener
+     */
+    public void addReportChangeListener(ReportPeer.ChangeListener listener) {
+        mReportChangeListeners.add(listener);
+    }
+
+    public void removeReportChangeListener(ReportPeer.ChangeListener listener) {
+        mReportChangeListeners.remove(listener);
+    }
+
+    /**
+     * Pass committed changes of reports to the listeners in the main thread
+     *
+     * @param changes
+     */
+    void dispatchReportChanges(final List<ReportPeer.Change> changes) {
+        if (mReportChangeListeners.isEmpty()) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ReportPeer.ChangeListener listener : mReportChangeListeners) {
+                    listener.onReportsChanged(changes);
+                }
+            }
+        });
+    }
+
+    /**
+     * Mark the task as deleted and then delete its reports in background,
+     * chunk by chunk, so that the database isn't locked for a long time if
+     * the task has a lot of reports. Marked tasks are not listed anymore.
+     *
+     * @param taskId
+     * @param callback Called after the task has been marked as deleted
+     */
+    public void deleteTaskInBackground(final long taskId,
+            DbWriteQueue.Callback<Boolean> callback) {
+        mWriteQueue.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return getTaskPeer().markTaskDeleted(taskId);
+            }
+        }, callback);
+        purgeDeletedTasks();
+    }
+
+    /**
+     * Delete one chunk of data of the tasks marked as deleted; next chunk is
+     * queued after the previous one is committed, so that other writes can
+     * run in between
+     */
+    private synchronized void purgeDeletedTasks() {
+        if (mDb == null) {
+            // Will be continued when the database is open again
+            return;
+        }
+        if (mIsPurging) {
+            mIsPurgeRequested = true;
+            return;
+        }
+        mIsPurging = true;
+        submitPurgeChunk();
+    }
+
+    private void submitPurgeChunk() {
+        mWriteQueue.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return getTaskPeer().purgeDeletedTasks(PURGE_CHUNK_SIZE);
+            }
+        }, new DbWriteQueue.Callback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean hasMore) {
+                synchronized (GoalTrackerDbAdapter.this) {
+                    if ((hasMore || mIsPurgeRequested) && mDb != null) {
+                        mIsPurgeRequested = false;
+                        submitPurgeChunk();
+                    } else {
+                        mIsPurging = false;
+                        mIsPurgeRequested = false;
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Log.e(TAG, "Can't delete data of deleted tasks", e);
+                synchronized (GoalTrackerDbAdapter.this) {
+                    mIsPurging = false;
+                    mIsPurgeRequested = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the queue which should be used for all writes done from the UI;
+     * doesn't open the database, so it can be called in the main thread
+     *
+     * @return
+     */
+    public DbWriteQueue getWriteQueue() {
+        return mWriteQueue;
+    }
 }
@@ -0,0 +1,153 @@
+package com.k10v.goaltracker;
+
+import android.database.Cursor;
+
+/**
+ * Everything the graph shows about a task, prepared when the task is loaded.
+ * Instances are immutable, so they can be handed from the UI thread to the
+ * drawing thread without locking.
+ */
+public final class GraphData {
+
+    public final TaskSeries series;
+    public final SeriesIndex seriesIndex;
+
+    public final float startValue;
+
+    /**
+     * Value of the last report, null if there are no reports
+     */
+    public final Float lastValue;
+
+    public final Float targetValue;
+
+    /**
+     * Min/max values of the reports and the start value
+     */
+    public final float minValue;
+    public final float maxValue;
+
+    /**
+     * Epoch days of the first and the last report
+     */
+    public final int minDay;
+    public final int maxDay;
+
+    public GraphData(TaskSeries series, SeriesIndex seriesIndex,
+            float startValue, Float lastValue, Float targetValue,
+            float minValue, float maxValue, int minDay, int maxDay) {
+        this.series = series;
+        this.seriesIndex = seriesIndex;
+        this.startValue = startValue;
+        this.lastValue = lastValue;
+        this.targetValue = targetValue;
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+        this.minDay = minDay;
+        this.maxDay = maxDay;
+    }
+
+    /**
+     * Read task/reports details from the database. Value and date ranges
+     * are calculated from the reports themselves (like when reports are
+     * changed later), so they are consistent with the graph even if the
+     * reports have been changed between the two queries.
+     *
+     * @param taskCursor
+     * @param reportsCursor
+     * @return
+     */
+    public static GraphData read(Cursor taskCursor, Cursor reportsCursor) {
+
+        // Get information about the task
+        float startValue = taskCursor.getFloat(
+                taskCursor.getColumnIndexOrThrow(TaskPeer.KEY_START_VALUE));
+
+        int targetValueIndex = taskCursor.getColumnIndexOrThrow(TaskPeer.KEY_TARGET_VALUE);
+        Float targetValue = taskCursor.isNull(targetValueIndex) ? null : taskCursor.getFloat(targetValueIndex);
+
+        // Process list of reports
+        TaskSeries series = TaskSeries.read(reportsCursor);
+        DailyValues dailyValues = DailyValues.build(series, startValue);
+        SeriesIndex seriesIndex = new SeriesIndex(series, dailyValues, startValue);
+
+        return fromIndex(seriesIndex, startValue, targetValue);
+    }
+
+    /**
+     * Returns data with the report for the given day added or replaced.
+     * Adding a report after the last one (the usual case) takes logarithmic
+     * time; other changes rebuild the index of the series.
+     *
+     * @param day Epoch day
+     * @param value
+     * @return
+     */
+    public GraphData withReport(int day, float value) {
+        int size = series.size();
+        int lastDay = (size == 0) ? 0 : series.getDay(size - 1);
+        if (size == 0 || day > lastDay) {
+            return withIndex(seriesIndex.append(day, value));
+        }
+        if (day == lastDay) {
+            return withIndex(seriesIndex.truncate(size - 1).append(day, value));
+        }
+        return withIndex(SeriesIndex.build(series.withReport(day, value), startValue));
+    }
+
+    /**
+     * Returns data without the report for the given day
+     *
+     * @param day Epoch day
+     * @return
+     */
+    public GraphData withoutReport(int day) {
+        int index = series.indexOf(day);
+        if (index < 0) {
+            return this;
+        }
+        if (index == series.size() - 1) {
+            return withIndex(seriesIndex.truncate(index));
+        }
+        return withIndex(SeriesIndex.build(series.withoutReport(day), startValue));
+    }
+
+    /**
+     * Returns data with other reports
+     *
+     * @param index
+     * @return
+     */
+    private GraphData withIndex(SeriesIndex index) {
+        return fromIndex(index, startValue, targetValue);
+    }
+
+    /**
+     * Returns data of the indexed reports; value and date ranges are taken
+     * from the index
+     *
+     * @param index
+     * @param startValue
+     * @param targetValue
+     * @return
+     */
+    private static GraphData fromIndex(SeriesIndex index, float startValue,
+            Float targetValue) {
+
+        TaskSeries newSeries = index.getSeries();
+        int size = newSeries.size();
+        if (size == 0) {
+            return new GraphData(newSeries, index, startValue, null, targetValue,
+                    startValue, startValue, 0, 0);
+        }
+
+        int first = newSeries.getDay(0);
+        int last = newSeries.getDay(size - 1);
+        SeriesIndex.RangeStats stats = new SeriesIndex.RangeStats();
+        index.query(first, last, stats);
+
+        return new GraphData(newSeries, index, startValue, newSeries.getValue(size - 1),
+                targetValue, Math.min(startValue, stats.minValue),
+                Math.max(startValue, stats.maxValue), first, last);
+    }
+}
@@ -1,16 +1,12 @@
 package com.k10v.goaltracker;
 
-import java.util.Calendar;
-import java.util.Date;
-import java.util.HashMap;
-
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.util.Pair;
 
 /**
  * Class responsible for drawing a graph on the canvas
@@ -29,7 +25,23 @@ public class GraphDrawer {
     private int mCanvasYMin;
     private int mCanvasYMax;
 
-    private HashMap<Date, Float> mValues;
+    private TaskSeries mSeries;
+    private SeriesIndex mSeriesIndex;
+    private SeriesDecimator mDecimator = new SeriesDecimator();
+
+    // Lines of the grid and of the progress, rebuilt only when the data or
+    // the geometry of the graph change
+    private LineBuffer mGridLines = new LineBuffer();
+    private LineBuffer mProgressLines = new LineBuffer();
+    private boolean mGridLinesValid = false;
+    private boolean mProgressLinesValid = false;
+
+    // Parts of the graph which don't depend on the pointer are rendered
+    // off-screen into two layers: the selection is drawn between them, the
+    // labels on top of them
+    private Bitmap mBackgroundLayer; // background and grid
+    private Bitmap mForegroundLayer; // current value, axes and progress
+    private boolean mLayersValid = false;
 
     private float mMinValue;
     private float mMaxValue;
@@ -38,8 +50,9 @@ public class GraphDrawer {
     private float mLastValue;
     private Float mTargetValue;
 
-    private Date mMinDate;
-    private Date mMaxDate;
+    // Epoch days
+    private int mMinDay;
+    private int mMaxDay;
     private int mDateRange;
 
     private boolean mIsTouched = false;
@@ -48,6 +61,13 @@ public class GraphDrawer {
     private float mPointer2X = 0;
     private float mPointer2Y = 0;
 
+    // Selected date range (days of the graph, the first day is 1) and its
+    // statistics, updated once per frame
+    private boolean mHasSelection = false;
+    private int mSelectionFirstDayN;
+    private int mSelectionLastDayN;
+    private SeriesIndex.RangeStats mSelection = new SeriesIndex.RangeStats();
+
     private Paint mPaintVerticalGrid;
     private Paint mPaintAxes;
     private Paint mPaintCurrentValue;
@@ -55,15 +75,41 @@ public class GraphDrawer {
     private Paint mPaintSelectedDate;
     private Paint mPaintSelectedValue;
     private Paint mPaintSelectedValueNegative;
+    private Paint mPaintSelectedExtremes;
     private Paint mPaintLabels;
     private Paint mPaintLabelsBackground;
 
-    // Used for different date conversions; made it a class member for
-    // performance reasons, to avoid object creation overhead
-    private Calendar mCalendar = Calendar.getInstance();
+    // == Labels ==
+
+    // Kinds of labels in the label cache
+    private static final int LABEL_NONE = 0;
+    private static final int LABEL_START = 1;
+    private static final int LABEL_FINISH = 2;
+    private static final int LABEL_FINISH_DIFF = 3;
+    private static final int LABEL_RANGE = 4;
+    private static final int LABEL_PERCENTAGE = 4; // added to the kinds above
+    private static final int LABEL_NUMBER = 9;
+    private static final int LABEL_DATE = 10;
+    private static final int LABEL_DATE_RANGE = 11;
+    private static final int LABEL_MIN_MAX = 12;
+
+    private LabelCache mLabels;
+
+    // Date labels are dropped from the cache when the formatter forgets them
+    // (e.g. at midnight "Today" becomes a date)
+    private DateFormatter mDateFormatter;
+    private int mDateFormatterGeneration;
+
+    // Bounds of a digit, used as the height of all labels
+    private final Rect mDigitBounds = new Rect();
+
+    // Scratch rectangle for label backgrounds
+    private final RectF mLabelRect = new RectF();
 
     public GraphDrawer(Context c) {
         mContext = c;
+        mDateFormatter = DateFormatter.getInstance(c);
+        mDateFormatterGeneration = mDateFormatter.getGeneration();
         setupPaints();
     }
 
@@ -92,6 +138,9 @@ public class GraphDrawer {
         mPaintSelectedValueNegative = new Paint();
         mPaintSelectedValueNegative.setARGB(192, 192, 96, 96);
 
+        mPaintSelectedExtremes = new Paint();
+        mPaintSelectedExtremes.setARGB(192, 255, 255, 255);
+
         mPaintLabels = new Paint();
         mPaintLabels.setARGB(255, 255, 255, 255);
         mPaintLabels.setTextSize(mLabelTextSize);
@@ -101,6 +150,9 @@ public class GraphDrawer {
         mPaintLabelsBackground = new Paint();
         mPaintLabelsBackground.setARGB(128, 0, 0, 0);
         mPaintLabels.setAntiAlias(true);
+
+        mPaintLabels.getTextBounds("0", 0, 1, mDigitBounds);
+        mLabels = new LabelCache(mPaintLabels, 64);
     }
 
     public void setCanvas(Canvas canvas) {
@@ -108,40 +160,80 @@ public class GraphDrawer {
     }
 
     public void setCanvasRectangle(int xMin, int yMin, int xMax, int yMax) {
-        mCanvasXMin = xMin;
-        mCanvasYMin = yMin;
-        mCanvasXMax = xMax;
-        mCanvasYMax = yMax - mLabelTextSize - 2 * mLabelTextMargin;
+        setPlotRectangle(xMin, yMin, xMax, yMax - mLabelTextSize - 2 * mLabelTextMargin);
     }
 
-    public void setValues(HashMap<Date, Float> values) {
-        mValues = values;
+    /**
+     * Set the rectangle of the progress line itself, without room for the
+     * labels; used by drawSparkline()
+     *
+     * @param xMin
+     * @param yMin
+     * @param xMax
+     * @param yMax
+     */
+    public void setPlotRectangle(int xMin, int yMin, int xMax, int yMax) {
+        if (xMin != mCanvasXMin || yMin != mCanvasYMin || xMax != mCanvasXMax || yMax != mCanvasYMax) {
+            mCanvasXMin = xMin;
+            mCanvasYMin = yMin;
+            mCanvasXMax = xMax;
+            mCanvasYMax = yMax;
+            mGridLinesValid = false;
+            mProgressLinesValid = false;
+        }
+    }
+
+    public void setSeries(TaskSeries series, SeriesIndex seriesIndex) {
+        if (series != mSeries || seriesIndex != mSeriesIndex) {
+            mSeries = series;
+            mSeriesIndex = seriesIndex;
+            mProgressLinesValid = false;
+        }
     }
 
     public void setValueRange(float minValue, float maxValue) {
-        mMinValue = minValue;
-        mMaxValue = maxValue;
+        if (minValue != mMinValue || maxValue != mMaxValue) {
+            mMinValue = minValue;
+            mMaxValue = maxValue;
+            mProgressLinesValid = false;
+        }
     }
 
-    public void setDateRange(Date minDate, Date maxDate) {
-        mMinDate = minDate;
-        mMaxDate = maxDate;
-        // TODO: Use JodaTime library for dates instead?
-        mDateRange = 1 + Math.round(
-                (maxDate.getTime() - minDate.getTime()) /
-                (24 * 60 * 60 * 1000f));
+    /**
+     * @param minDay Epoch day
+     * @param maxDay Epoch day
+     */
+    public void setDateRange(int minDay, int maxDay) {
+        if (minDay != mMinDay || maxDay != mMaxDay) {
+            mMinDay = minDay;
+            mMaxDay = maxDay;
+            mDateRange = maxDay - minDay + 1;
+            mGridLinesValid = false;
+            mProgressLinesValid = false;
+        }
     }
 
     public void setStartValue(float value) {
-        mStartValue = value;
+        if (value != mStartValue) {
+            mStartValue = value;
+            mProgressLinesValid = false;
+            mLabels.clear(); // percentages
+        }
     }
 
     public void setLastValue(float value) {
-        mLastValue = value;
+        if (value != mLastValue) {
+            mLastValue = value;
+            mLayersValid = false;
+        }
     }
 
     public void setTargetValue(Float value) {
-        mTargetValue = value;
+        if (value == null ? mTargetValue != null : !value.equals(mTargetValue)) {
+            mTargetValue = value;
+            mLayersValid = false;
+            mLabels.clear(); // percentages
+        }
     }
 
     public void setPointer(boolean isTouched, float x1, float y1, float x2, float y2) {
@@ -153,23 +245,97 @@ public class GraphDrawer {
     }
 
     public void draw() {
+        int dateFormatterGeneration = mDateFormatter.getGeneration();
+        if (dateFormatterGeneration != mDateFormatterGeneration) {
+            mDateFormatterGeneration = dateFormatterGeneration;
+            mLabels.clear();
+        }
+        mLabels.startFrame();
+        mHasSelection = updateSelection();
+        if (!mLayersValid || !mGridLinesValid || !mProgressLinesValid || !layersFitCanvas()) {
+            renderLayers();
+        }
+        mCanvas.drawBitmap(mBackgroundLayer, 0, 0, null);
+        drawPointerSelection();
+        mCanvas.drawBitmap(mForegroundLayer, 0, 0, null);
+        drawLabels();
+        drawPointerLabels();
+    }
+
+    /**
+     * Draw only the progress line (without the grid, axes and labels) right
+     * on the canvas, e.g. for a thumbnail of the graph
+     */
+    public void drawSparkline() {
+        drawProgress();
+    }
+
+    /**
+     * Free memory used by the off-screen layers; they will be rendered again
+     * on the next draw()
+     */
+    public void releaseLayers() {
+        if (mBackgroundLayer != null) {
+            mBackgroundLayer.recycle();
+            mBackgroundLayer = null;
+        }
+        if (mForegroundLayer != null) {
+            mForegroundLayer.recycle();
+            mForegroundLayer = null;
+        }
+        mLayersValid = false;
+    }
+
+    private boolean layersFitCanvas() {
+        return mBackgroundLayer != null &&
+                mBackgroundLayer.getWidth() == mCanvas.getWidth() &&
+                mBackgroundLayer.getHeight() == mCanvas.getHeight();
+    }
+
+    private void renderLayers() {
+
+        if (!layersFitCanvas()) {
+            releaseLayers();
+            int width = mCanvas.getWidth();
+            int height = mCanvas.getHeight();
+            mBackgroundLayer = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+            mForegroundLayer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        // Drawing methods draw on mCanvas, so point it to the layers for a
+        // while
+        Canvas canvas = mCanvas;
+
+        mCanvas = new Canvas(mBackgroundLayer);
         mCanvas.drawColor(Color.BLACK);
         drawVerticalGrid();
-        drawPointerSelection();
+
+        mForegroundLayer.eraseColor(Color.TRANSPARENT);
+        mCanvas = new Canvas(mForegroundLayer);
         drawCurrentValue();
         drawAxes();
         drawProgress();
-        drawLabels();
-        drawPointerLabels();
+
+        mCanvas = canvas;
+        mLayersValid = true;
     }
 
     private void drawVerticalGrid() {
+        if (!mGridLinesValid) {
+            buildVerticalGrid();
+            mGridLinesValid = true;
+        }
+        mGridLines.draw(mCanvas, mPaintVerticalGrid);
+    }
+
+    private void buildVerticalGrid() {
+        mGridLines.clear();
         int x0 = getCanvasXByDayN(-1);
         int x;
         for (int i = 0; i <= mDateRange; i++) {
             x = getCanvasXByDayN(i);
             if (x != x0) {
-                drawVerticalLine(x, mPaintVerticalGrid);
+                mGridLines.add(x, mCanvasYMin, x, mCanvasYMax + 1);
             }
             x0 = x;
         }
@@ -189,39 +355,104 @@ public class GraphDrawer {
     }
 
     private void drawProgress() {
-        float value = mStartValue;
+        if (!mProgressLinesValid) {
+            buildProgress();
+            mProgressLinesValid = true;
+        }
+        mProgressLines.draw(mCanvas, mPaintProgress);
+    }
+
+    private void buildProgress() {
+
+        mProgressLines.clear();
+
+        int width = mCanvasXMax - mCanvasXMin;
+        if (width < mDateRange) {
+            buildDecimatedProgress(width);
+            return;
+        }
+
+        // Value changes only on days with reports, so the line is drawn
+        // report by report: horizontally till the day before the report, then
+        // to the report's value
         int x0 = getCanvasXByDayN(0);
         int y0 = getCanvasYByValue(mStartValue);
 
-        for (int i = 1; i <= mDateRange; i++) {
-
-            Date date = getDateByDayN(i);
+        for (int i = 0, n = mSeries.size(); i < n; i++) {
 
-            if (mValues.containsKey(date)) {
-                value = mValues.get(date);
+            int dayN = getDayNByDay(mSeries.getDay(i));
+            int y = getCanvasYByValue(mSeries.getValue(i));
+            if (dayN < 1) {
+                y0 = y;
+                continue;
+            }
+            if (mDateRange < dayN) {
+                break;
             }
 
-            int x = getCanvasXByDayN(i);
-            int y = getCanvasYByValue(value);
+            int xBefore = getCanvasXByDayN(dayN - 1);
+            int x = getCanvasXByDayN(dayN);
 
-            // Draw progress
-            if (x != x0 || y != y0) {
-                mCanvas.drawLine(x0, y0, x, y, mPaintProgress);
-            }
+            addProgressLine(x0, y0, xBefore, y0);
+            addProgressLine(xBefore, y0, x, y);
 
             x0 = x;
             y0 = y;
         }
+
+        addProgressLine(x0, y0, getCanvasXByDayN(mDateRange), y0);
     }
 
-    private Pair<Integer, Integer> _getPointerDateRange() {
+    /**
+     * Build progress when there are more days than pixels: one vertical
+     * line per pixel column with reports, connected by horizontal lines
+     *
+     * @param width Width of the graph in pixels
+     */
+    private void buildDecimatedProgress(int width) {
+
+        mDecimator.update(mSeriesIndex, mMinDay, mDateRange, width);
+
+        int x0 = mCanvasXMin;
+        int y0 = getCanvasYByValue(mDecimator.getValueBefore());
+
+        for (int column = 0, n = mDecimator.getColumnCount(); column < n; column++) {
+
+            if (!mDecimator.isChanged(column)) {
+                continue;
+            }
+
+            int x = mCanvasXMin + column;
+            addProgressLine(x0, y0, x, y0);
+            addProgressLine(x,
+                    getCanvasYByValue(mDecimator.getLow(column)), x,
+                    getCanvasYByValue(mDecimator.getHigh(column)));
+
+            x0 = x;
+            y0 = getCanvasYByValue(mDecimator.getClose(column));
+        }
+
+        addProgressLine(x0, y0, mCanvasXMax, y0);
+    }
+
+    private void addProgressLine(int x0, int y0, int x, int y) {
+        mProgressLines.add(x0, y0, x, y);
+    }
+
+    /**
+     * Find the dates below the pointers and calculate statistics of the
+     * selected date range
+     *
+     * @return false if nothing is selected
+     */
+    private boolean updateSelection() {
 
         if (!mIsTouched) {
-            return null;
+            return false;
         }
 
-        Integer startDayN = getDayNByCanvasX(Math.round(mPointer1X));
-        Integer finishDayN = getDayNByCanvasX(Math.round(mPointer2X));
+        int startDayN = getDayNByCanvasX(Math.round(mPointer1X));
+        int finishDayN = getDayNByCanvasX(Math.round(mPointer2X));
 
         // Make sure day 1 is earlier than day 2
         if (finishDayN < startDayN) {
@@ -232,7 +463,7 @@ public class GraphDrawer {
 
         // Check is pointer 1 is inside the graph
         if (startDayN <= 0 || mDateRange < startDayN) {
-            return null;
+            return false;
         }
 
         // Make sure pointer 2 is inside the graph
@@ -243,53 +474,28 @@ public class GraphDrawer {
             finishDayN = mDateRange;
         }
 
-        return new Pair<Integer, Integer>(startDayN, finishDayN);
-    }
-
-    private Pair<Float, Float> _getPointerValueRange(Pair<Integer, Integer> days) {
-
-        // Find min/max values for the selected date range
-        float value = mStartValue;
-        float startValue = value;
-        float finishValue = value;
-        for (int i = 1; i <= days.second; i++) {
-
-            Date date = getDateByDayN(i);
-
-            if (mValues.containsKey(date)) {
-                value = mValues.get(date);
-            }
-
-            if (i == days.first - 1) {
-                startValue = value;
-            }
-
-            if (i == days.second) {
-                finishValue = value;
-            }
-        }
-
-        return new Pair<Float, Float>(startValue, finishValue);
+        mSelectionFirstDayN = startDayN;
+        mSelectionLastDayN = finishDayN;
+        mSeriesIndex.query(getDayByDayN(startDayN), getDayByDayN(finishDayN), mSelection);
+        return true;
     }
 
     private void drawPointerSelection() {
 
-        // Find the dates below the pointers
-        Pair<Integer, Integer> days = _getPointerDateRange();
-        if (days == null) {
+        if (!mHasSelection) {
             return;
         }
 
-        // Find min/max values for the selected date range
-        Pair<Float, Float> values = _getPointerValueRange(days);
+        float startValue = mSelection.startValue;
+        float finishValue = mSelection.endValue;
 
         // X-coordinates of two vertical lines
-        int xMin = getCanvasXByDayN(days.first - 1);
-        int xMax = getCanvasXByDayN(days.second);
+        int xMin = getCanvasXByDayN(mSelectionFirstDayN - 1);
+        int xMax = getCanvasXByDayN(mSelectionLastDayN);
 
         // Y-coordinates of two horizontal lines
-        int yMin = getCanvasYByValue(Math.max(values.first, values.second));
-        int yMax = getCanvasYByValue(Math.min(values.first, values.second));
+        int yMin = getCanvasYByValue(Math.max(startValue, finishValue));
+        int yMax = getCanvasYByValue(Math.min(startValue, finishValue));
 
         // == Drawing ==
 
@@ -297,165 +503,104 @@ public class GraphDrawer {
         mCanvas.drawRect(xMin, mCanvasYMin, xMax + 1, mCanvasYMax + 1, mPaintSelectedDate);
 
         // Horizontal fill
-        Paint paint = (values.first <= values.second) ? mPaintSelectedValue : mPaintSelectedValueNegative;
+        Paint paint = (startValue <= finishValue) ? mPaintSelectedValue : mPaintSelectedValueNegative;
         mCanvas.drawRect(mCanvasXMin, yMin, mCanvasXMax + 1, yMax + 1, paint);
+
+        // Min/max values within the selection
+        int yMinValue = getCanvasYByValue(mSelection.minValue);
+        int yMaxValue = getCanvasYByValue(mSelection.maxValue);
+        mCanvas.drawLine(xMin, yMinValue, xMax + 1, yMinValue, mPaintSelectedExtremes);
+        mCanvas.drawLine(xMin, yMaxValue, xMax + 1, yMaxValue, mPaintSelectedExtremes);
     }
 
     private void drawPointerLabels() {
 
-        // Find the dates below the pointers
-        Pair<Integer, Integer> days = _getPointerDateRange();
-        if (days == null) {
+        if (!mHasSelection) {
             return;
         }
 
-        // Find min/max values for the selected date range
-        Pair<Float, Float> values = _getPointerValueRange(days);
-
-        // Difference in value between start and finish dates
-        float valueDiff = values.second - values.first;
+        float startValue = mSelection.startValue;
+        float finishValue = mSelection.endValue;
 
         // Y-coordinates of two horizontal lines
-        int yMin = getCanvasYByValue(Math.max(values.first, values.second));
-        int yMax = getCanvasYByValue(Math.min(values.first, values.second));
+        int yMin = getCanvasYByValue(Math.max(startValue, finishValue));
+        int yMax = getCanvasYByValue(Math.min(startValue, finishValue));
 
         // == Value labels ==
 
-        String topValueLabel;
-        String bottomValueLabel;
-
-        String topPercentageLabel;
-        String bottomPercentageLabel;
-
-        boolean showPercentageLabels = (mTargetValue != null) && (mTargetValue != mStartValue);
-        float startPercentage = 0;
-        float finishPercentage = 0;
-        float percentageDiff = 0;
-
-        if (showPercentageLabels) {
-            startPercentage = Math.round(1000 * (values.first - mStartValue) / (mTargetValue - mStartValue)) / 10f;
-            finishPercentage = Math.round(1000 * (values.second - mStartValue) / (mTargetValue - mStartValue)) / 10f;
-            percentageDiff = Math.round(10 * (finishPercentage - startPercentage)) / 10f;
-        }
-
-        if (0 < valueDiff) {
-
-            bottomValueLabel = Util.formatNumber(values.first);
-
-            topValueLabel = Util.formatNumber(values.second) +
-                    " (" + Util.formatNumber(valueDiff, true) + ")";
-
-            bottomPercentageLabel = Util.formatNumber(startPercentage) + "%";
-
-            topPercentageLabel = Util.formatNumber(finishPercentage) + "%" +
-                    " (" + Util.formatNumber(percentageDiff, true) + ")";
-
-        } else if (valueDiff < 0) {
-
-            topValueLabel = Util.formatNumber(values.first);
-
-            bottomValueLabel = Util.formatNumber(values.second) +
-                    " (" + Util.formatNumber(valueDiff, true) + ")";
-
-            topPercentageLabel = Util.formatNumber(startPercentage) + "%";
-
-            bottomPercentageLabel = Util.formatNumber(finishPercentage) + "%" +
-                    " (" + Util.formatNumber(percentageDiff, true) + ")";
-
+        // Start value is shown at its line, finish value is shown at its
+        // line together with the difference
+        int topLabel;
+        int bottomLabel;
+
+        if (startValue < finishValue) {
+            topLabel = LABEL_FINISH_DIFF;
+            bottomLabel = LABEL_START;
+        } else if (finishValue < startValue) {
+            topLabel = LABEL_START;
+            bottomLabel = LABEL_FINISH_DIFF;
         } else {
-
-            topValueLabel = Util.formatNumber(values.second);
-            topPercentageLabel = Util.formatNumber(finishPercentage) + "%";
-
             // Show only one label if value has not changed
-            bottomValueLabel = null;
-            bottomPercentageLabel = null;
-
+            topLabel = LABEL_FINISH;
+            bottomLabel = LABEL_NONE;
         }
 
         // Calculate label's positions (when calculating labels' heights, we
         // don't really care about the real bounds of the labels, only about
         // height of a digit)
-        Rect digitBounds = new Rect();
-        Rect bounds = new Rect();
-        mPaintLabels.getTextBounds("0", 0, 1, digitBounds);
-        int topLabelY = yMin - digitBounds.bottom - mLabelTextMargin;
-        int bottomLabelY = yMax - digitBounds.top + mLabelTextMargin;
+        int topLabelY = yMin - mDigitBounds.bottom - mLabelTextMargin;
+        int bottomLabelY = yMax - mDigitBounds.top + mLabelTextMargin;
 
         // Check labels' bounds; if they don't fit into the drawing area,
         // combine them into one label
-        final String combineLabelsSeparator = "...";
-        int labelHeight = digitBounds.bottom - digitBounds.top;
-        if (topValueLabel != null && topLabelY - labelHeight - mLabelTextMargin < mCanvasYMin) {
+        int labelHeight = mDigitBounds.bottom - mDigitBounds.top;
+        if (topLabelY - labelHeight - mLabelTextMargin < mCanvasYMin) {
 
             // Move top label to the bottom when it is too close to the border
-            if (0 < valueDiff) {
-                bottomValueLabel = bottomValueLabel + combineLabelsSeparator + topValueLabel;
-                bottomPercentageLabel = bottomPercentageLabel + combineLabelsSeparator + topPercentageLabel;
-            } else if (valueDiff < 0) {
-                bottomValueLabel = topValueLabel + combineLabelsSeparator + bottomValueLabel;
-                bottomPercentageLabel = topPercentageLabel + combineLabelsSeparator + bottomPercentageLabel;
-            } else {
-                bottomValueLabel = topValueLabel;
-                bottomPercentageLabel = topPercentageLabel;
-            }
-            topValueLabel = null;
-            topPercentageLabel = null;
+            bottomLabel = (bottomLabel == LABEL_NONE) ? topLabel : LABEL_RANGE;
+            topLabel = LABEL_NONE;
 
-        } else if (bottomValueLabel != null && mCanvasYMax < bottomLabelY + mLabelTextMargin) {
+        } else if (bottomLabel != LABEL_NONE && mCanvasYMax < bottomLabelY + mLabelTextMargin) {
 
             // Move bottom label to the top when it is too close to the border
-            if (0 < valueDiff) {
-                topValueLabel = bottomValueLabel + combineLabelsSeparator + topValueLabel;
-                topPercentageLabel = bottomPercentageLabel + combineLabelsSeparator + topPercentageLabel;
-            } else if (valueDiff < 0) {
-                topValueLabel = topValueLabel + combineLabelsSeparator + bottomValueLabel;
-                topPercentageLabel = topPercentageLabel + combineLabelsSeparator + bottomPercentageLabel;
-            } else {
-                // Nothing to change, we don't have bottom label in this case
-            }
-            bottomValueLabel = null;
-            bottomPercentageLabel = null;
+            topLabel = LABEL_RANGE;
+            bottomLabel = LABEL_NONE;
 
         }
 
         // == Date labels ==
 
-        // Build pointer's date labels
-        String leftDateLabel = null;
-        String rightDateLabel = null;
-        String middleDateLabel = null;
+        LabelCache.Entry leftDateLabel = null;
+        LabelCache.Entry rightDateLabel = null;
+        LabelCache.Entry middleDateLabel = null;
 
         int leftDateX = 0;
         int rightDateX = 0;
         int middleDateX = 0;
 
-        if (days.first == days.second) {
+        if (mSelectionFirstDayN == mSelectionLastDayN) {
 
             // Only one day is selected
 
-            middleDateLabel = Util.formatDate(getDateByDayN(days.second), mContext);
+            middleDateLabel = getDateLabel(getDayByDayN(mSelectionLastDayN));
 
         } else {
 
             // Date range is selected
 
-            leftDateLabel = Util.formatDate(getDateByDayN(days.first), mContext);
-            rightDateLabel = Util.formatDate(getDateByDayN(days.second), mContext);
-
-            mPaintLabels.getTextBounds(rightDateLabel, 0, rightDateLabel.length(), bounds);
-            rightDateX = getCanvasXByDayN(days.second) - bounds.right;
+            leftDateLabel = getDateLabel(getDayByDayN(mSelectionFirstDayN));
+            rightDateLabel = getDateLabel(getDayByDayN(mSelectionLastDayN));
 
-            mPaintLabels.getTextBounds(leftDateLabel, 0, leftDateLabel.length(), bounds);
-            leftDateX = getCanvasXByDayN(days.first - 1) - bounds.left;
-            int leftDateWidth = bounds.right - bounds.left;
+            rightDateX = getCanvasXByDayN(mSelectionLastDayN) - rightDateLabel.bounds.right;
+            leftDateX = getCanvasXByDayN(mSelectionFirstDayN - 1) - leftDateLabel.bounds.left;
+            int leftDateWidth = leftDateLabel.bounds.right - leftDateLabel.bounds.left;
 
             // Check if left and right labels are located too close to each
             // other or even overlap
             if (rightDateX <= leftDateX + leftDateWidth + 2 * mLabelTextMargin) {
                 // In this case combine them to a single label
-                // "\u2013" - endash; "\u2014" - emdash
-                middleDateLabel = leftDateLabel + " \u2014 " + rightDateLabel;
+                middleDateLabel = getDateRangeLabel(
+                        getDayByDayN(mSelectionFirstDayN), getDayByDayN(mSelectionLastDayN));
                 leftDateLabel = null;
                 rightDateLabel = null;
             }
@@ -464,17 +609,8 @@ public class GraphDrawer {
 
         // Calculate and correct (if necessary) position of the middle label
         if (middleDateLabel != null) {
-            mPaintLabels.getTextBounds(middleDateLabel, 0, middleDateLabel.length(), bounds);
-            int middleDateWidth = bounds.right - bounds.left;
-            middleDateX = (
-                    getCanvasXByDayN(days.first - 1) + getCanvasXByDayN(days.second) -
-                    middleDateWidth
-                    ) / 2;
-            if (middleDateX < mCanvasXMin) {
-                middleDateX = mCanvasXMin;
-            } else if (mCanvasXMax < middleDateX + middleDateWidth) {
-                middleDateX = mCanvasXMax - bounds.right;
-            }
+            middleDateX = getCenteredLabelX(middleDateLabel,
+                    getCanvasXByDayN(mSelectionFirstDayN - 1), getCanvasXByDayN(mSelectionLastDayN));
         }
 
         // == Drawing ==
@@ -482,26 +618,21 @@ public class GraphDrawer {
         // Draw the labels
 
         int valueLabelX = mCanvasXMin + mLabelTextMargin;
-        int dateLabelY = mCanvasYMax - digitBounds.top + mLabelTextMargin;
-
-        if (topValueLabel != null) {
-            drawLabel(topValueLabel, valueLabelX, topLabelY);
-        }
-
-        if (bottomValueLabel != null) {
-            drawLabel(bottomValueLabel, valueLabelX, bottomLabelY);
-        }
+        int dateLabelY = mCanvasYMax - mDigitBounds.top + mLabelTextMargin;
+        boolean showPercentageLabels = (mTargetValue != null) && (mTargetValue != mStartValue);
 
-        if (showPercentageLabels && topPercentageLabel != null) {
-            mPaintLabels.getTextBounds(topPercentageLabel, 0, topPercentageLabel.length(), bounds);
-            int labelX = mCanvasXMax - mLabelTextMargin - bounds.right;
-            drawLabel(topPercentageLabel, labelX, topLabelY);
+        if (topLabel != LABEL_NONE) {
+            drawLabel(getSelectionLabel(topLabel, false), valueLabelX, topLabelY);
+            if (showPercentageLabels) {
+                drawRightLabel(getSelectionLabel(topLabel, true), topLabelY);
+            }
         }
 
-        if (showPercentageLabels && bottomPercentageLabel != null) {
-            mPaintLabels.getTextBounds(bottomPercentageLabel, 0, bottomPercentageLabel.length(), bounds);
-            int labelX = mCanvasXMax - mLabelTextMargin - bounds.right;
-            drawLabel(bottomPercentageLabel, labelX, bottomLabelY);
+        if (bottomLabel != LABEL_NONE) {
+            drawLabel(getSelectionLabel(bottomLabel, false), valueLabelX, bottomLabelY);
+            if (showPercentageLabels) {
+                drawRightLabel(getSelectionLabel(bottomLabel, true), bottomLabelY);
+            }
         }
 
         if (leftDateLabel != null) {
@@ -515,6 +646,15 @@ public class GraphDrawer {
         if (middleDateLabel != null) {
             drawLabel(middleDateLabel, middleDateX, dateLabelY);
         }
+
+        // Min/max values within the selected date range, shown at the top
+        // of the drawing area above the selection
+        if (mSelectionFirstDayN != mSelectionLastDayN) {
+            LabelCache.Entry minMaxLabel = getMinMaxLabel(mSelection.minValue, mSelection.maxValue);
+            int minMaxX = getCenteredLabelX(minMaxLabel,
+                    getCanvasXByDayN(mSelectionFirstDayN - 1), getCanvasXByDayN(mSelectionLastDayN));
+            drawLabel(minMaxLabel, minMaxX, mCanvasYMin - mDigitBounds.top + mLabelTextMargin);
+        }
     }
 
     private void drawLabels() {
@@ -523,41 +663,37 @@ public class GraphDrawer {
             return;
         }
 
-        Rect bounds = new Rect();
-        String text;
+        LabelCache.Entry label;
 
         // == Start value ==
 
-        text = Util.formatNumber(mStartValue);
-        mPaintLabels.getTextBounds(text, 0, text.length(), bounds);
-        drawLabel(text,
+        label = getNumberLabel(mStartValue);
+        drawLabel(label,
                 mCanvasXMin + mLabelTextMargin,
-                getCanvasYByValue(mStartValue) - bounds.bottom - mLabelTextMargin);
+                getCanvasYByValue(mStartValue) - label.bounds.bottom - mLabelTextMargin);
 
         // == Target value ==
 
         if (mTargetValue != null) {
-            text = Util.formatNumber(mTargetValue);
-            mPaintLabels.getTextBounds(text, 0, text.length(), bounds);
-            drawLabel(text,
+            label = getNumberLabel(mTargetValue);
+            drawLabel(label,
                     mCanvasXMin + mLabelTextMargin,
-                    getCanvasYByValue(mTargetValue) - bounds.top + mLabelTextMargin);
+                    getCanvasYByValue(mTargetValue) - label.bounds.top + mLabelTextMargin);
         }
 
         // == Max value ==
 
         if (mTargetValue == null) {
-            text = Util.formatNumber(mMaxValue);
-            mPaintLabels.getTextBounds(text, 0, text.length(), bounds);
-            drawLabel(text,
+            label = getNumberLabel(mMaxValue);
+            drawLabel(label,
                     mCanvasXMin + mLabelTextMargin,
-                    mCanvasYMin - bounds.top + mLabelTextMargin);
+                    mCanvasYMin - label.bounds.top + mLabelTextMargin);
         }
 
         // == Min date ==
 
-        text = Util.formatDate(mMinDate, mContext);
-        mPaintLabels.getTextBounds(text, 0, text.length(), bounds);
+        label = getDateLabel(mMinDay);
+        Rect bounds = label.bounds;
 
         // Try to center the label against date column, but adjust label's
         // position if there is not enough space
@@ -569,14 +705,14 @@ public class GraphDrawer {
             minDateX = mCanvasXMin;
         }
 
-        drawLabel(text,
+        drawLabel(label,
                 minDateX,
                 mCanvasYMax - bounds.top + mLabelTextMargin);
 
         // == Max date ==
 
-        text = Util.formatDate(mMaxDate, mContext);
-        mPaintLabels.getTextBounds(text, 0, text.length(), bounds);
+        label = getDateLabel(mMaxDay);
+        bounds = label.bounds;
 
         // Try to center the label against date column, but adjust label's
         // position if there is not enough space
@@ -589,15 +725,151 @@ public class GraphDrawer {
             maxDateX = mCanvasXMax - bounds.right;
         }
 
-        drawLabel(text,
+        drawLabel(label,
                 maxDateX,
                 mCanvasYMax - bounds.top + mLabelTextMargin);
     }
 
-    private Date getDateByDayN(int n) {
-        mCalendar.setTime(mMinDate);
-        mCalendar.add(Calendar.DAY_OF_MONTH, n - 1);
-        return mCalendar.getTime();
+    // == Labels ==
+
+    private LabelCache.Entry getNumberLabel(float value) {
+        long key = Float.floatToIntBits(value);
+        LabelCache.Entry label = mLabels.get(LABEL_NUMBER, key, 0);
+        if (label == null) {
+            label = mLabels.put(LABEL_NUMBER, key, 0, Util.formatNumber(value));
+        }
+        return label;
+    }
+
+    /**
+     * @param day Epoch day
+     * @return
+     */
+    private LabelCache.Entry getDateLabel(int day) {
+        LabelCache.Entry label = mLabels.get(LABEL_DATE, day, 0);
+        if (label == null) {
+            label = mLabels.put(LABEL_DATE, day, 0, mDateFormatter.format(day));
+        }
+        return label;
+    }
+
+    /**
+     * @param fromDay Epoch day
+     * @param toDay Epoch day
+     * @return
+     */
+    private LabelCache.Entry getDateRangeLabel(int fromDay, int toDay) {
+        LabelCache.Entry label = mLabels.get(LABEL_DATE_RANGE, fromDay, toDay);
+        if (label == null) {
+            // "\u2013" - endash; "\u2014" - emdash
+            label = mLabels.put(LABEL_DATE_RANGE, fromDay, toDay,
+                    mDateFormatter.format(fromDay) + " \u2014 " + mDateFormatter.format(toDay));
+        }
+        return label;
+    }
+
+    private LabelCache.Entry getMinMaxLabel(float minValue, float maxValue) {
+        long key1 = Float.floatToIntBits(minValue);
+        long key2 = Float.floatToIntBits(maxValue);
+        LabelCache.Entry label = mLabels.get(LABEL_MIN_MAX, key1, key2);
+        if (label == null) {
+            label = mLabels.put(LABEL_MIN_MAX, key1, key2, mContext.getString(
+                    R.string.graph_selection_min_max,
+                    Util.formatNumber(minValue), Util.formatNumber(maxValue)));
+        }
+        return label;
+    }
+
+    /**
+     * Returns label showing start and/or finish value of the selection
+     *
+     * @param kind One of LABEL_START, LABEL_FINISH, LABEL_FINISH_DIFF,
+     *            LABEL_RANGE
+     * @param percentage Show values as percentage of the target
+     * @return
+     */
+    private LabelCache.Entry getSelectionLabel(int kind, boolean percentage) {
+
+        float start = mSelection.startValue;
+        float finish = mSelection.endValue;
+
+        int labelKind = percentage ? kind + LABEL_PERCENTAGE : kind;
+        long key1 = Float.floatToIntBits(start);
+        long key2 = Float.floatToIntBits(finish);
+
+        LabelCache.Entry label = mLabels.get(labelKind, key1, key2);
+        if (label != null) {
+            return label;
+        }
+
+        String suffix = "";
+        float diff = finish - start;
+        if (percentage) {
+            start = Math.round(1000 * (start - mStartValue) / (mTargetValue - mStartValue)) / 10f;
+            finish = Math.round(1000 * (finish - mStartValue) / (mTargetValue - mStartValue)) / 10f;
+            diff = Math.round(10 * (finish - start)) / 10f;
+            suffix = "%";
+        }
+
+        String startText = Util.formatNumber(start) + suffix;
+        String finishText = Util.formatNumber(finish) + suffix;
+        String text;
+
+        switch (kind) {
+
+        case LABEL_START:
+            text = startText;
+            break;
+
+        case LABEL_FINISH:
+            text = finishText;
+            break;
+
+        case LABEL_FINISH_DIFF:
+            text = finishText + " (" + Util.formatNumber(diff, true) + ")";
+            break;
+
+        default:
+            text = startText + "..." + finishText + " (" + Util.formatNumber(diff, true) + ")";
+            break;
+        }
+
+        return mLabels.put(labelKind, key1, key2, text);
+    }
+
+    /**
+     * Returns X-coordinate of the label centered between two points, but
+     * kept inside the drawing area
+     *
+     * @param label
+     * @param x1
+     * @param x2
+     * @return
+     */
+    private int getCenteredLabelX(LabelCache.Entry label, int x1, int x2) {
+        Rect bounds = label.bounds;
+        int width = bounds.right - bounds.left;
+        int x = (x1 + x2 - width) / 2;
+        if (x < mCanvasXMin) {
+            x = mCanvasXMin;
+        } else if (mCanvasXMax < x + width) {
+            x = mCanvasXMax - bounds.right;
+        }
+        return x;
+    }
+
+    /**
+     * Returns epoch day of the n-th day of the graph (the first day is 1)
+     *
+     * @param n
+     * @return
+     */
+    private int getDayByDayN(int n) {
+        return mMinDay + n - 1;
+    }
+
+    private int getDayNByDay(int day) {
+        return day - mMinDay + 1;
     }
 
     private int getCanvasYByValue(float value) {
@@ -631,23 +903,27 @@ public class GraphDrawer {
         drawVerticalLine(getCanvasXByDayN(n), paint);
     }
 
-    private void drawLabel(String text, int x, int y) {
-
-        Rect boundsX = new Rect();
-        mPaintLabels.getTextBounds(text, 0, text.length(), boundsX);
-
-        Rect boundsY = new Rect();
-        mPaintLabels.getTextBounds("0", 0, 1, boundsY);
+    private void drawLabel(LabelCache.Entry label, int x, int y) {
 
+        // Height of all labels is the height of a digit
         int margin = mLabelTextMargin - 1;
+        mLabelRect.set(
+                x + label.bounds.left - margin,
+                y + mDigitBounds.top - margin,
+                x + label.bounds.right + margin,
+                y + mDigitBounds.bottom + margin);
+        mCanvas.drawRoundRect(mLabelRect, margin - 1, margin - 1, mPaintLabelsBackground);
+
+        mCanvas.drawText(label.text, x, y, mPaintLabels);
+    }
 
-        RectF rect = new RectF(
-                x + boundsX.left - margin,
-                y + boundsY.top - margin,
-                x + boundsX.right + margin,
-                y + boundsY.bottom + margin);
-        mCanvas.drawRoundRect(rect, margin - 1, margin - 1, mPaintLabelsBackground);
-
-        mCanvas.drawText(text, x, y, mPaintLabels);
+    /**
+     * Draw label aligned to the right side of the drawing area
+     *
+     * @param label
+     * @param y
+     */
+    private void drawRightLabel(LabelCache.Entry label, int y) {
+        drawLabel(label, mCanvasXMax - mLabelTextMargin - label.bounds.right, y);
     }
 }
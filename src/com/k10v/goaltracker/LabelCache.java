@@ -0,0 +1,142 @@
+package com.k10v.goaltracker;
+
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Small cache of label texts and their bounds, keyed by a label kind and
+ * the numbers the label is built from. Labels which are drawn in every frame
+ * are formatted and measured only once, and looking them up allocates
+ * nothing.
+ *
+ * The cache is set-associative: every key has a set of a few slots, a new
+ * label replaces the least recently used label of its set. Labels used in
+ * the current frame (see startFrame()) are never replaced, so entries
+ * returned during a frame stay valid until the next frame even if their keys
+ * map to the same set; if the whole set is in use, the label is returned
+ * without being cached.
+ */
+public class LabelCache {
+
+    public static class Entry {
+
+        private int mFrame = -1;
+        private int mKind = 0;
+        private long mKey1;
+        private long mKey2;
+
+        /**
+         * Label text, null if the slot is empty
+         */
+        public String text;
+
+        /**
+         * Bounds of the text as measured by the paint; must not be modified
+         */
+        public final Rect bounds = new Rect();
+    }
+
+    /**
+     * Number of slots in a set
+     */
+    private static final int WAYS = 4;
+
+    private final Paint mPaint;
+    private final Entry[] mEntries;
+    private int mFrame = 0;
+
+    /**
+     * @param paint Paint used to measure labels
+     * @param size Number of slots, must be a power of two and at least WAYS
+     */
+    public LabelCache(Paint paint, int size) {
+        mPaint = paint;
+        mEntries = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            mEntries[i] = new Entry();
+        }
+    }
+
+    /**
+     * Start a new frame; entries returned before may be replaced from now on
+     */
+    public void startFrame() {
+        mFrame++;
+    }
+
+    /**
+     * Returns the cached label
+     *
+     * @param kind Non-zero number distinguishing labels built from the same
+     *            numbers in different ways
+     * @param key1
+     * @param key2
+     * @return null if the label is not cached
+     */
+    public Entry get(int kind, long key1, long key2) {
+        int set = getSet(kind, key1, key2);
+        for (int i = set; i < set + WAYS; i++) {
+            Entry entry = mEntries[i];
+            if (entry.text != null && entry.mKind == kind && entry.mKey1 == key1 && entry.mKey2 == key2) {
+                entry.mFrame = mFrame;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Measure the label and store it in the cache
+     *
+     * @param kind
+     * @param key1
+     * @param key2
+     * @param text
+     * @return
+     */
+    public Entry put(int kind, long key1, long key2, String text) {
+
+        // Empty or least recently used slot which is not used in this frame
+        int set = getSet(kind, key1, key2);
+        Entry entry = null;
+        for (int i = set; i < set + WAYS; i++) {
+            Entry candidate = mEntries[i];
+            if (candidate.text == null) {
+                entry = candidate;
+                break;
+            }
+            if (candidate.mFrame != mFrame && (entry == null || candidate.mFrame - entry.mFrame < 0)) {
+                entry = candidate;
+            }
+        }
+        if (entry == null) {
+            entry = new Entry();
+        }
+
+        entry.mFrame = mFrame;
+        entry.mKind = kind;
+        entry.mKey1 = key1;
+        entry.mKey2 = key2;
+        entry.text = text;
+        mPaint.getTextBounds(text, 0, text.length(), entry.bounds);
+        return entry;
+    }
+
+    public void clear() {
+        for (Entry entry : mEntries) {
+            entry.text = null;
+        }
+    }
+
+    /**
+     * Returns index of the first slot of the key's set
+     */
+    private int getSet(int kind, long key1, long key2) {
+        long hash = kind * 31 + key1;
+        hash = hash * 31 + key2;
+        int h = (int) (hash ^ (hash >>> 32));
+        h ^= (h >>> 16);
+        h ^= (h >>> 7);
+        return h & (mEntries.length - WAYS);
+    }
+}
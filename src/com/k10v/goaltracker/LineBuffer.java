@@ -0,0 +1,51 @@
+package com.k10v.goaltracker;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Growable list of line segments which are drawn with a single
+ * Canvas.drawLines() call. The buffer is reused, so once it has grown to the
+ * size of the graph, rebuilding it doesn't allocate anything.
+ */
+public class LineBuffer {
+
+    private float[] mPoints = new float[64];
+    private int mSize = 0;
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Add a segment; segments of zero length are skipped
+     *
+     * @param x0
+     * @param y0
+     * @param x
+     * @param y
+     */
+    public void add(float x0, float y0, float x, float y) {
+
+        if (x == x0 && y == y0) {
+            return;
+        }
+
+        if (mPoints.length < mSize + 4) {
+            float[] points = new float[mPoints.length * 2];
+            System.arraycopy(mPoints, 0, points, 0, mSize);
+            mPoints = points;
+        }
+
+        mPoints[mSize++] = x0;
+        mPoints[mSize++] = y0;
+        mPoints[mSize++] = x;
+        mPoints[mSize++] = y;
+    }
+
+    public void draw(Canvas canvas, Paint paint) {
+        if (mSize > 0) {
+            canvas.drawLines(mPoints, 0, mSize, paint);
+        }
+    }
+}
@@ -1,18 +1,23 @@
 package com.k10v.goaltracker;
 
+import java.util.List;
+
 import android.app.Dialog;
 import android.app.ListActivity;
 import android.content.Intent;
 import android.database.Cursor;
+import android.os.AsyncTask;
+import android.content.res.Resources;
 import android.os.Bundle;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.Window;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
 
 // TODO: showDialog() is deprecated (here and in ReportList)
 
@@ -30,9 +35,45 @@ public class Main extends ListActivity {
     public static final int MENU_ID_DELETE_TASK = Menu.FIRST + 2;
     public static final int MENU_ID_VIEW_TASK_REPORTS = Menu.FIRST + 3;
     public static final int MENU_ID_VIEW_TASK_GRAPH = Menu.FIRST + 4;
+    public static final int MENU_ID_EXPORT_CSV = Menu.FIRST + 5;
+    public static final int MENU_ID_EXPORT_JSON = Menu.FIRST + 6;
 
     private GoalTrackerDbAdapter mDbHelper;
+    private TasksLoader mTasksLoader;
     private Cursor mTasksCursor;
+    private TaskListAdapter mTasksAdapter;
+    private SparklineRenderer mSparklineRenderer;
+    private ExportTask mExportTask;
+
+    private boolean mIsReloadScheduled = false;
+
+    /**
+     * Drops sparklines of the tasks whose reports have changed and reloads
+     * the list (last values, dates and progress) once the queued writes are
+     * done, so that a burst of changes causes a single reload
+     */
+    private final ReportPeer.ChangeListener mReportChangeListener =
+            new ReportPeer.ChangeListener() {
+                @Override
+                public void onReportsChanged(List<ReportPeer.Change> changes) {
+                    for (ReportPeer.Change change : changes) {
+                        mSparklineRenderer.invalidate(change.taskId);
+                    }
+                    if (mIsReloadScheduled) {
+                        return;
+                    }
+                    mIsReloadScheduled = true;
+                    mDbHelper.getWriteQueue().runAfterWrites(new Runnable() {
+                        @Override
+                        public void run() {
+                            mIsReloadScheduled = false;
+                            if (!isFinishing()) {
+                                fillTasksList();
+                            }
+                        }
+                    });
+                }
+            };
 
     /**
      * Used for "Delete Task" operation.
@@ -49,9 +90,21 @@ public class Main extends ListActivity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        // Progress indicator is shown while the tasks are loading
+        requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
+
         setContentView(R.layout.task_list);
-        mDbHelper = new GoalTrackerDbAdapter(this);
-        mDbHelper.open();
+        ((TextView) findViewById(android.R.id.empty)).setText(R.string.message_loading);
+        mDbHelper = GoalTrackerDbAdapter.acquire(this);
+
+        Resources resources = getResources();
+        mSparklineRenderer = new SparklineRenderer(this,
+                resources.getDimensionPixelSize(R.dimen.sparkline_width),
+                resources.getDimensionPixelSize(R.dimen.sparkline_height));
+        mSparklineRenderer.start();
+        mDbHelper.addReportChangeListener(mReportChangeListener);
+
         fillTasksList();
         registerForContextMenu(getListView());
     }
@@ -59,7 +112,16 @@ public class Main extends ListActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mDbHelper.close();
+        if (mTasksLoader != null) {
+            mTasksLoader.cancel(false);
+            mTasksLoader = null;
+        }
+        if (mExportTask != null) {
+            mExportTask.abort();
+        }
+        mDbHelper.removeReportChangeListener(mReportChangeListener);
+        mSparklineRenderer.stop();
+        mDbHelper.release();
     }
 
     /**
@@ -70,6 +132,10 @@ public class Main extends ListActivity {
         boolean result = super.onCreateOptionsMenu(menu);
         menu.add(0, MENU_ID_CREATE_TASK, 0, R.string.menu_create_task)
                 .setIcon(android.R.drawable.ic_menu_add);
+        menu.add(0, MENU_ID_EXPORT_CSV, 1, R.string.menu_export_csv)
+                .setIcon(android.R.drawable.ic_menu_save);
+        menu.add(0, MENU_ID_EXPORT_JSON, 2, R.string.menu_export_json)
+                .setIcon(android.R.drawable.ic_menu_save);
         return result;
     }
 
@@ -85,6 +151,14 @@ public class Main extends ListActivity {
             runCreateTask();
             return true;
 
+        case MENU_ID_EXPORT_CSV:
+            runExport(DataExporter.Format.CSV);
+            return true;
+
+        case MENU_ID_EXPORT_JSON:
+            runExport(DataExporter.Format.JSON);
+            return true;
+
         }
 
         return super.onOptionsItemSelected(item);
@@ -162,7 +236,15 @@ public class Main extends ListActivity {
     @Override
     protected void onActivityResult(int requestCode, int resultCode,
             Intent intent) {
-        fillTasksList();
+        // Reload the list after the changes made by the other activity are saved
+        mDbHelper.getWriteQueue().runAfterWrites(new Runnable() {
+            @Override
+            public void run() {
+                if (!isFinishing()) {
+                    fillTasksList();
+                }
+            }
+        });
     }
 
     /**
@@ -241,17 +323,102 @@ public class Main extends ListActivity {
     }
 
     /**
-     * Fills/reloads the list of tasks.
+     * Exports all tasks and reports to a file in background
+     *
+     * @param format
+     */
+    private void runExport(DataExporter.Format format) {
+        if (mExportTask != null && mExportTask.getStatus() != AsyncTask.Status.FINISHED) {
+            return;
+        }
+        mExportTask = new ExportTask(this, format);
+        mExportTask.execute();
+    }
+
+    /**
+     * Fills/reloads the list of tasks. Tasks are loaded in background together
+     * with their progress summary in a single query; sparklines are rendered
+     * in background too.
      */
     private void fillTasksList() {
-        mTasksCursor = mDbHelper.getTaskPeer().fetchAllTasks();
-        startManagingCursor(mTasksCursor);
+        if (mTasksLoader != null) {
+            mTasksLoader.cancel(false);
+        }
+        setProgressBarIndeterminateVisibility(true);
+        mTasksLoader = new TasksLoader();
+        mTasksLoader.execute();
+    }
+
+    /**
+     * Loads all tasks with their statistics
+     */
+    private class TasksLoader extends AsyncTask<Void, Void, Cursor> {
 
-        String[] from = new String[] { TaskPeer.KEY_TITLE };
-        int[] to = new int[] { R.id.task_row_text };
+        @Override
+        protected Cursor doInBackground(Void... params) {
 
-        SimpleCursorAdapter tasks = new SimpleCursorAdapter(this,
-                R.layout.task_row, mTasksCursor, from, to);
-        setListAdapter(tasks);
+            GoalTrackerDbAdapter dbHelper = GoalTrackerDbAdapter.acquire(Main.this);
+            try {
+                Cursor tasksCursor = dbHelper.getTaskPeer().fetchAllTasksWithStats();
+
+                // Run the query now rather than when the list is drawn
+                tasksCursor.getCount();
+
+                if (isCancelled()) {
+                    tasksCursor.close();
+                    return null;
+                }
+                return tasksCursor;
+            } finally {
+                dbHelper.release();
+            }
+        }
+
+        /**
+         * Called instead of onPostExecute() if the loader is cancelled after
+         * the tasks are loaded (API 11+)
+         */
+        @Override
+        protected void onCancelled(Cursor tasksCursor) {
+            if (tasksCursor != null) {
+                tasksCursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor tasksCursor) {
+            // Before API 11 a loader cancelled after loading still gets here
+            if (mTasksLoader != this || isFinishing()) {
+                if (tasksCursor != null) {
+                    tasksCursor.close();
+                }
+                return;
+            }
+            setProgressBarIndeterminateVisibility(false);
+            mTasksLoader = null;
+            ((TextView) findViewById(android.R.id.empty)).setText(R.string.message_no_tasks);
+            showTasks(tasksCursor);
+        }
+    }
+
+    /**
+     * Shows loaded tasks in the list, replacing the previous cursor
+     *
+     * @param tasksCursor
+     */
+    private void showTasks(Cursor tasksCursor) {
+        if (mTasksCursor != null) {
+            // Closed by the adapter below
+            stopManagingCursor(mTasksCursor);
+        }
+        mTasksCursor = tasksCursor;
+        startManagingCursor(mTasksCursor);
+
+        if (mTasksAdapter == null) {
+            mTasksAdapter = new TaskListAdapter(this, mTasksCursor, mSparklineRenderer);
+            setListAdapter(mTasksAdapter);
+        } else {
+            mTasksAdapter.changeCursor(mTasksCursor);
+        }
     }
 }
@@ -0,0 +1,195 @@
+package com.k10v.goaltracker;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Formats numbers the same way as DecimalFormat("#.#####") does (up to 5
+ * decimal places, half-even rounding, trailing zeros stripped), but without
+ * creating objects: digits are written into a reusable buffer and recently
+ * formatted numbers are remembered.
+ *
+ * Rounding is done on the exact binary value of the float, which gives the
+ * same result as DecimalFormat for all numbers below 10^13; larger numbers,
+ * infinity and NaN are passed to DecimalFormat.
+ *
+ * Instances are thread-safe.
+ */
+public class NumberFormatter {
+
+    /**
+     * Numbers up to this value are formatted by the formatter itself
+     */
+    private static final float MAX_EXACT_VALUE = 1e13f;
+
+    private static final int FRACTION_DIGITS = 5;
+    private static final long FRACTION_SCALE = 100000;
+
+    /**
+     * Number of remembered numbers, must be a power of two
+     */
+    private static final int CACHE_SIZE = 64;
+
+    // Formatting symbols of the locale the formatter was set up for
+    private Locale mLocale;
+    private char mZeroDigit;
+    private char mDecimalSeparator;
+    private DecimalFormat mFallbackFormat;
+
+    private final char[] mDigits = new char[20];
+    private final StringBuilder mBuilder = new StringBuilder();
+
+    // Cache of formatted numbers: a key is the float bits and the plus sign
+    // flag
+    private final long[] mCacheKeys = new long[CACHE_SIZE];
+    private final String[] mCacheValues = new String[CACHE_SIZE];
+
+    /**
+     * Format the number, returning a cached string if the number was
+     * formatted recently
+     *
+     * @param number
+     * @param withPlusSign Whether to add a "plus" sign to positive numbers
+     * @return
+     */
+    public synchronized String format(float number, boolean withPlusSign) {
+
+        checkLocale();
+
+        long key = Float.floatToIntBits(number) & 0xffffffffL;
+        if (withPlusSign) {
+            key |= 1L << 32;
+        }
+        int hash = (int) (key ^ (key >>> 32));
+        int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+
+        String result = mCacheValues[slot];
+        if (result != null && mCacheKeys[slot] == key) {
+            return result;
+        }
+
+        mBuilder.setLength(0);
+        format(number, withPlusSign, mBuilder);
+        result = mBuilder.toString();
+
+        mCacheKeys[slot] = key;
+        mCacheValues[slot] = result;
+        return result;
+    }
+
+    /**
+     * Format the number, appending it to the given builder
+     *
+     * @param number
+     * @param withPlusSign Whether to add a "plus" sign to positive numbers
+     * @param out
+     */
+    public synchronized void format(float number, boolean withPlusSign, StringBuilder out) {
+
+        checkLocale();
+
+        if (0 < number) {
+            if (withPlusSign) {
+                out.append('+');
+            }
+            appendAbsolute(number, out);
+        } else if (number < 0) {
+            // "\u2212" is a proper "minus" sign
+            out.append('\u2212');
+            appendAbsolute(-number, out);
+        } else {
+            out.append('0');
+        }
+    }
+
+    /**
+     * Reload formatting symbols and forget formatted numbers if the default
+     * locale has changed
+     */
+    private void checkLocale() {
+
+        Locale locale = Locale.getDefault();
+        if (locale.equals(mLocale)) {
+            return;
+        }
+
+        DecimalFormatSymbols symbols = new DecimalFormatSymbols(locale);
+        mZeroDigit = symbols.getZeroDigit();
+        mDecimalSeparator = symbols.getDecimalSeparator();
+        mFallbackFormat = new DecimalFormat("#.#####", symbols);
+        mLocale = locale;
+
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            mCacheValues[i] = null;
+        }
+    }
+
+    /**
+     * @param value Positive number
+     * @param out
+     */
+    private void appendAbsolute(float value, StringBuilder out) {
+
+        if (!(value < MAX_EXACT_VALUE)) {
+            out.append(mFallbackFormat.format(value));
+            return;
+        }
+
+        // value == mantissa * 2^-shift
+        int bits = Float.floatToIntBits(value);
+        int exponent = (bits >> 23) & 0xff;
+        long mantissa = bits & 0x7fffff;
+        if (exponent == 0) {
+            exponent = 1; // subnormal number
+        } else {
+            mantissa |= 0x800000;
+        }
+        int shift = 150 - exponent;
+
+        // Value rounded to FRACTION_DIGITS decimal places and multiplied by
+        // FRACTION_SCALE
+        long scaled;
+        if (shift <= 0) {
+            scaled = (mantissa << -shift) * FRACTION_SCALE;
+        } else if (shift < 63) {
+            long exact = mantissa * FRACTION_SCALE;
+            scaled = exact >>> shift;
+            long remainder = exact - (scaled << shift);
+            long half = 1L << (shift - 1);
+            if (half < remainder || (remainder == half && (scaled & 1) == 1)) {
+                scaled++;
+            }
+        } else {
+            // Less than 2^24 * 2^-63, rounds to zero
+            scaled = 0;
+        }
+
+        appendDigits(scaled / FRACTION_SCALE, 1, out);
+
+        long fraction = scaled % FRACTION_SCALE;
+        if (fraction != 0) {
+            int digits = FRACTION_DIGITS;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            out.append(mDecimalSeparator);
+            appendDigits(fraction, digits, out);
+        }
+    }
+
+    /**
+     * @param number Non-negative number
+     * @param minDigits Number is padded with zeros to this number of digits
+     * @param out
+     */
+    private void appendDigits(long number, int minDigits, StringBuilder out) {
+        int position = mDigits.length;
+        while (number != 0 || mDigits.length - position < minDigits) {
+            mDigits[--position] = (char) (mZeroDigit + (int) (number % 10));
+            number /= 10;
+        }
+        out.append(mDigits, position, mDigits.length - position);
+    }
+}
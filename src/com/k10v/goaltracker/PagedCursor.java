@@ -0,0 +1,141 @@
+package com.k10v.goaltracker;
+
+import java.util.ArrayList;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+/**
+ * Cursor over pages of rows fetched by separate queries (e.g. by keyset
+ * pagination), which can grow while it's used by an adapter. All pages must
+ * have the same columns.
+ */
+public class PagedCursor extends AbstractCursor {
+
+    private ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+
+    /**
+     * Position of the first row of every page
+     */
+    private ArrayList<Integer> mPageStarts = new ArrayList<Integer>();
+
+    private int mCount = 0;
+    private Cursor mCurrent;
+
+    public PagedCursor(Cursor firstPage) {
+        addPage(firstPage);
+    }
+
+    /**
+     * Append rows of the given cursor; cursor is closed together with this
+     * one. Adapter using this cursor should be notified about the change.
+     *
+     * @param page
+     */
+    public void addPage(Cursor page) {
+        mPages.add(page);
+        mPageStarts.add(mCount);
+        mCount += page.getCount();
+    }
+
+    /**
+     * Returns the last page, e.g. to get the key of the next page
+     *
+     * @return
+     */
+    public Cursor getLastPage() {
+        return mPages.get(mPages.size() - 1);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mPages.get(0).getColumnNames();
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        // Pages are few, so linear search is good enough
+        int page = mPages.size() - 1;
+        while (page > 0 && newPosition < mPageStarts.get(page)) {
+            page--;
+        }
+        mCurrent = mPages.get(page);
+        return mCurrent.moveToPosition(newPosition - mPageStarts.get(page));
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCurrent.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCurrent.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCurrent.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCurrent.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCurrent.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCurrent.getDouble(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCurrent.isNull(column);
+    }
+
+    @Override
+    public void deactivate() {
+        for (Cursor page : mPages) {
+            page.deactivate();
+        }
+        super.deactivate();
+    }
+
+    /**
+     * Only the first page is queried again, the other pages are dropped:
+     * their bounds come from the rows of the previous page, which may have
+     * changed, so requerying them could skip or repeat rows. The dropped rows
+     * should be loaded again as new pages.
+     */
+    @Override
+    public boolean requery() {
+        while (mPages.size() > 1) {
+            mPages.remove(mPages.size() - 1).close();
+            mPageStarts.remove(mPageStarts.size() - 1);
+        }
+        Cursor firstPage = mPages.get(0);
+        if (!firstPage.requery()) {
+            return false;
+        }
+        mCount = firstPage.getCount();
+        return super.requery();
+    }
+
+    @Override
+    public void close() {
+        for (Cursor page : mPages) {
+            page.close();
+        }
+        super.close();
+    }
+}
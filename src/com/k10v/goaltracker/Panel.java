@@ -1,13 +1,6 @@
 package com.k10v.goaltracker;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.HashMap;
-
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Canvas;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
@@ -18,29 +11,16 @@ public class Panel extends SurfaceView implements SurfaceHolder.Callback {
 
     private CanvasThread mCanvasThread;
 
-    private Date mMinDate;
-    private Date mMaxDate;
-
-    private Float mStartValue = null;
-    private Float mLastValue = null;
-    private Float mTargetValue = null;
-    private Float mMinValue = null;
-    private Float mMaxValue = null;
-
-    private HashMap<Date, Float> mValues;
-
-    private boolean mIsTouched = false;
-    private float mPointer1X = 0;
-    private float mPointer1Y = 0;
-    private float mPointer2X = 0;
-    private float mPointer2Y = 0;
-
-    private GraphDrawer mGraph;
+    /**
+     * What should be drawn, replaced (never modified) by the UI thread and
+     * read by the canvas thread
+     */
+    private volatile FrameState mFrameState = new FrameState(null, false, 0, 0, 0, 0);
 
     /**
-     * When true, indicates that graph should be updated
+     * Used by the canvas thread only
      */
-    private boolean mUpdate = false;
+    private GraphDrawer mGraph;
 
     public Panel(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -57,7 +37,6 @@ public class Panel extends SurfaceView implements SurfaceHolder.Callback {
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
-        redraw();
         mCanvasThread = new CanvasThread(getHolder(), this);
         mCanvasThread.setRunning(true);
         mCanvasThread.start();
@@ -75,123 +54,66 @@ public class Panel extends SurfaceView implements SurfaceHolder.Callback {
                 // we will try it again and again...
             }
         }
+        mCanvasThread = null;
+        mGraph.releaseLayers();
     }
 
     @Override
     public void onDraw(Canvas canvas) {
 
-        // Check if graph should be updated
-        if (!needsUpdate()) {
-            return;
-        }
-        mUpdate = false;
+        // Take the latest state once, it may be replaced while drawing
+        FrameState frame = mFrameState;
+        GraphData data = frame.data;
 
         // Don't have any reports yet?
-        if (mValues.size() == 0) {
+        if (data == null || data.series.size() == 0) {
             return;
         }
 
         // If task has a target value which is not reached yet, consider using
         // target value as a minimum/maximum value; also use today as a maximum
         // date
-        float minValue = mMinValue;
-        float maxValue = mMaxValue;
-        Date maxDate = mMaxDate;
+        float minValue = data.minValue;
+        float maxValue = data.maxValue;
+        int maxDay = data.maxDay;
 
-        if (mTargetValue != null && mMaxValue < mTargetValue) {
+        if (data.targetValue != null && data.maxValue < data.targetValue) {
 
-            maxValue = mTargetValue;
+            maxValue = data.targetValue;
 
-            Calendar calendar = Calendar.getInstance();
-            calendar.set(Calendar.HOUR_OF_DAY, 0);
-            calendar.set(Calendar.MINUTE, 0);
-            calendar.set(Calendar.SECOND, 0);
-            calendar.set(Calendar.MILLISECOND, 0);
-            Date today = calendar.getTime();
-
-            if (today.compareTo(maxDate) > 0) {
-                maxDate = today;
+            int today = Util.getTodayEpochDay();
+            if (today > maxDay) {
+                maxDay = today;
             }
         }
 
-        if (mTargetValue != null && mTargetValue < mMinValue) {
-            minValue = mTargetValue;
+        if (data.targetValue != null && data.targetValue < data.minValue) {
+            minValue = data.targetValue;
         }
 
         mGraph.setCanvas(canvas);
         mGraph.setCanvasRectangle(0, 0, canvas.getWidth() - 1, canvas.getHeight() - 1);
-        mGraph.setValues(mValues);
-        mGraph.setStartValue(mStartValue);
-        mGraph.setLastValue(mLastValue);
-        mGraph.setTargetValue(mTargetValue);
+        mGraph.setSeries(data.series, data.seriesIndex);
+        mGraph.setStartValue(data.startValue);
+        // Statistics may be missing (e.g. while the task is being deleted),
+        // the series always has the last value
+        mGraph.setLastValue((data.lastValue != null) ?
+                data.lastValue : data.series.getValue(data.series.size() - 1));
+        mGraph.setTargetValue(data.targetValue);
         mGraph.setValueRange(minValue, maxValue);
-        mGraph.setDateRange(mMinDate, maxDate);
-        mGraph.setPointer(mIsTouched, mPointer1X, mPointer1Y, mPointer2X, mPointer2Y);
+        mGraph.setDateRange(data.minDay, maxDay);
+        mGraph.setPointer(frame.isTouched,
+                frame.pointer1X, frame.pointer1Y, frame.pointer2X, frame.pointer2Y);
         mGraph.draw();
     }
 
     /**
-     * Provide canvas with the task/reports details from the database
+     * Provide canvas with the task/reports details (see GraphData.read())
      *
-     * @param taskCursor
-     * @param reportsCursor
+     * @param data
      */
-    public void setData(Cursor taskCursor, Cursor reportsCursor) {
-
-        // Reset values
-        mMinDate = null;
-        mMaxDate = null;
-
-        // Get information about the task
-        mMinValue = mMaxValue = mStartValue = taskCursor.getFloat(
-                taskCursor.getColumnIndexOrThrow(TaskPeer.KEY_START_VALUE));
-
-        int targetValueIndex = taskCursor.getColumnIndexOrThrow(TaskPeer.KEY_TARGET_VALUE);
-        mTargetValue = taskCursor.isNull(targetValueIndex) ? null : taskCursor.getFloat(targetValueIndex);
-
-        // Process list of reports
-
-        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-
-        mValues = new HashMap<Date, Float>(reportsCursor.getCount());
-
-        reportsCursor.moveToFirst();
-
-        while (!reportsCursor.isAfterLast()) {
-
-            // Get values from the cursor
-            Float value = reportsCursor.getFloat(reportsCursor.getColumnIndexOrThrow(ReportPeer.KEY_VALUE));
-            String dateString = reportsCursor.getString(reportsCursor.getColumnIndexOrThrow(ReportPeer.KEY_DATE));
-            Date date = null;
-
-            reportsCursor.moveToNext();
-
-            try {
-                date = df.parse(dateString);
-            } catch (ParseException e) {
-                // Ignore records with invalid date
-                continue;
-            }
-
-            mValues.put(date, value);
-
-            if (value < mMinValue) {
-                mMinValue = value;
-            }
-
-            if (mMaxValue < value) {
-                mMaxValue = value;
-            }
-
-            mLastValue = value;
-
-            if (mMinDate == null) {
-                mMinDate = date;
-            }
-
-            mMaxDate = date;
-        }
-
+    public void setData(GraphData data) {
+        mFrameState = mFrameState.withData(data);
         redraw();
     }
 
@@ -199,50 +121,49 @@ public class Panel extends SurfaceView implements SurfaceHolder.Callback {
      * Ask graph to redraw itself
      */
     public void redraw() {
-        mUpdate = true;
-    }
-
-    /**
-     * Returns true if graph should be redrawn
-     *
-     * @return
-     */
-    public boolean needsUpdate() {
-        return mUpdate;
+        CanvasThread canvasThread = mCanvasThread;
+        if (canvasThread != null) {
+            canvasThread.requestRender();
+        }
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
 
-        mPointer1X = event.getX(0);
-        mPointer1Y = event.getY(0);
+        float pointer1X = event.getX(0);
+        float pointer1Y = event.getY(0);
+        float pointer2X = pointer1X;
+        float pointer2Y = pointer1Y;
         if (event.getPointerCount() > 1) {
-            mPointer2X = event.getX(1);
-            mPointer2Y = event.getY(1);
-        } else {
-            mPointer2X = mPointer1X;
-            mPointer2Y = mPointer1Y;
+            pointer2X = event.getX(1);
+            pointer2Y = event.getY(1);
         }
 
+        boolean isTouched;
+
         switch (event.getAction()) {
 
         case MotionEvent.ACTION_DOWN:
-            mIsTouched = true;
-            redraw();
-            return true;
+            isTouched = true;
+            break;
 
         case MotionEvent.ACTION_UP:
-            mIsTouched = false;
-            redraw();
-            return true;
+            isTouched = false;
+            break;
 
         case MotionEvent.ACTION_POINTER_DOWN:
         case MotionEvent.ACTION_POINTER_UP:
         case MotionEvent.ACTION_MOVE:
-            redraw();
-            return true;
+            isTouched = mFrameState.isTouched;
+            break;
+
+        default:
+            return super.onTouchEvent(event);
         }
 
-        return super.onTouchEvent(event);
+        mFrameState = new FrameState(mFrameState.data, isTouched,
+                pointer1X, pointer1Y, pointer2X, pointer2Y);
+        redraw();
+        return true;
     }
 }
@@ -0,0 +1,250 @@
+package com.k10v.goaltracker;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import android.database.SQLException;
+
+/**
+ * Imports reports of a task from CSV data. Every line contains report's date
+ * in yyyy-MM-dd format, its value and, optionally, "relative" flag (0 or 1);
+ * lines which can't be parsed (header, empty lines etc.) are skipped. Data is
+ * read line by line and inserted in chunks, so the whole file is never held
+ * in memory.
+ */
+public class ReportCsvImporter {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private ReportPeer mReportPeer;
+    private int mChunkSize = ReportPeer.DEFAULT_CHUNK_SIZE;
+    private int mSkippedLines;
+
+    public ReportCsvImporter(ReportPeer reportPeer) {
+        mReportPeer = reportPeer;
+    }
+
+    /**
+     * Set number of reports inserted in one transaction
+     *
+     * @param chunkSize
+     * @throws IllegalArgumentException if chunkSize is less than 1
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Returns number of lines skipped by the last import
+     *
+     * @return
+     */
+    public int getSkippedLines() {
+        return mSkippedLines;
+    }
+
+    /**
+     * Import reports from the given CSV data
+     *
+     * @param taskId
+     * @param reader
+     * @param policy What to do with reports with already existing dates
+     * @return number of imported reports
+     * @throws IOException if data couldn't be read
+     * @throws SQLException if reports couldn't be inserted
+     */
+    public int importReports(long taskId, Reader reader,
+            ReportPeer.ConflictPolicy policy) throws IOException, SQLException {
+        mSkippedLines = 0;
+        ReportIterator reports = new ReportIterator(
+                new BufferedReader(reader, BUFFER_SIZE));
+        try {
+            return mReportPeer.bulkInsertReports(taskId, reports, policy, mChunkSize);
+        } catch (ReadException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Parses a single CSV line into the given report
+     *
+     * @param line
+     * @param report
+     * @return false if the line is not a valid report
+     */
+    static boolean parseLine(String line, ReportPeer.Report report) {
+
+        int dateEnd = line.indexOf(',');
+        if (dateEnd < 0) {
+            return false;
+        }
+        int valueEnd = line.indexOf(',', dateEnd + 1);
+        if (valueEnd < 0) {
+            valueEnd = line.length();
+        }
+
+        // Date
+        int date = parseDate(line, dateEnd);
+        if (date == Integer.MIN_VALUE) {
+            return false;
+        }
+
+        // Value
+        try {
+            report.value = Double.parseDouble(
+                    unquote(line.substring(dateEnd + 1, valueEnd)));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        // Relative flag
+        report.relative = false;
+        if (valueEnd < line.length()) {
+            String relative = unquote(line.substring(valueEnd + 1));
+            report.relative = relative.equals("1") || relative.equalsIgnoreCase("true");
+        }
+
+        report.date = date;
+        return true;
+    }
+
+    /**
+     * Parses yyyy-MM-dd date (possibly quoted and surrounded by spaces) at the
+     * beginning of the string
+     *
+     * @param s
+     * @param end Index of the first character after the date
+     * @return epoch day or Integer.MIN_VALUE if the date is invalid
+     */
+    private static int parseDate(String s, int end) {
+        int start = 0;
+        while (start < end && isSkippable(s.charAt(start))) {
+            start++;
+        }
+        while (start < end && isSkippable(s.charAt(end - 1))) {
+            end--;
+        }
+        if (end - start != 10 || s.charAt(start + 4) != '-' || s.charAt(start + 7) != '-') {
+            return Integer.MIN_VALUE;
+        }
+        int year = parseDigits(s, start, start + 4);
+        int month = parseDigits(s, start + 5, start + 7);
+        int day = parseDigits(s, start + 8, start + 10);
+        if (year < 0 || month < 0 || day < 0) {
+            return Integer.MIN_VALUE;
+        }
+
+        // Reject dates like 2011-02-31 by converting epoch day back
+        int epochDay = Util.toEpochDay(year, month, day);
+        if (Util.toYmd(epochDay) != year * 10000 + month * 100 + day) {
+            return Integer.MIN_VALUE;
+        }
+        return epochDay;
+    }
+
+    private static int parseDigits(String s, int start, int end) {
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || '9' < c) {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static boolean isSkippable(char c) {
+        return c == ' ' || c == '\t' || c == '"';
+    }
+
+    private static String unquote(String s) {
+        s = s.trim();
+        if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"') {
+            s = s.substring(1, s.length() - 1).trim();
+        }
+        return s;
+    }
+
+    /**
+     * Reads reports from CSV one by one; the same Report object is returned
+     * for every line
+     */
+    private class ReportIterator implements Iterator<ReportPeer.Report> {
+
+        private BufferedReader mReader;
+        private ReportPeer.Report mReport = new ReportPeer.Report();
+        private boolean mHasNext;
+        private boolean mIsFetched = false;
+
+        public ReportIterator(BufferedReader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!mIsFetched) {
+                mHasNext = fetch();
+                mIsFetched = true;
+            }
+            return mHasNext;
+        }
+
+        @Override
+        public ReportPeer.Report next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mIsFetched = false;
+            return mReport;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Read lines until a valid one is found
+         *
+         * @return false if there are no more reports
+         */
+        private boolean fetch() {
+            try {
+                String line;
+                while ((line = mReader.readLine()) != null) {
+                    if (parseLine(line, mReport)) {
+                        return true;
+                    }
+                    mSkippedLines++;
+                }
+                return false;
+            } catch (IOException e) {
+                throw new ReadException(e);
+            }
+        }
+    }
+
+    /**
+     * Used to pass IOException through bulkInsertReports()
+     */
+    private static class ReadException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ReadException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -1,13 +1,15 @@
 package com.k10v.goaltracker;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.concurrent.Callable;
 
 import android.app.Activity;
 import android.app.DatePickerDialog;
 import android.app.Dialog;
+import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
@@ -28,7 +30,8 @@ public class ReportEdit extends Activity {
     public static final int MENU_ID_DELETE_REPORT = Menu.FIRST;
 
     private GoalTrackerDbAdapter mDbHelper;
-    private Cursor mReportCursor;
+    private ReportLoader mReportLoader;
+    private DateChecker mDateChecker;
 
     private Long mRowId;
     private Long mTaskId;
@@ -47,8 +50,7 @@ public class ReportEdit extends Activity {
         super.onCreate(savedInstanceState);
 
         // Prepare DB adapter
-        mDbHelper = new GoalTrackerDbAdapter(this);
-        mDbHelper.open();
+        mDbHelper = GoalTrackerDbAdapter.acquire(this);
 
         // Setup the View
         setContentView(R.layout.report_edit);
@@ -78,6 +80,11 @@ public class ReportEdit extends Activity {
             mTaskId = (Long) savedInstanceState.getSerializable(ReportPeer.KEY_TASK_ID);
             mCalendar = (Calendar) savedInstanceState.getSerializable(ReportPeer.KEY_DATE);
 
+            if (mRowId != null && mTaskId == null) {
+                // Report was not loaded yet
+                loadReport();
+            }
+
         } else {
 
             Bundle extras = getIntent().getExtras();
@@ -95,20 +102,7 @@ public class ReportEdit extends Activity {
                 } else {
 
                     // Edit existing report
-
-                    // Load database data for an existing report
-                    Cursor c = mReportCursor = mDbHelper.getReportPeer().fetchReport(mRowId);
-                    startManagingCursor(mReportCursor);
-                    mTaskId = c.getLong(c.getColumnIndexOrThrow(ReportPeer.KEY_TASK_ID));
-
-                    // Convert date from SQL format to a Calendar object
-                    String dateString = c.getString(c.getColumnIndexOrThrow(ReportPeer.KEY_DATE));
-                    SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-                    try {
-                        mCalendar.setTime(df.parse(dateString));
-                    } catch (ParseException e) {
-                        // Use default date
-                    }
+                    loadReport();
 
                 }
 
@@ -122,17 +116,25 @@ public class ReportEdit extends Activity {
             setTitle(R.string.title_edit_report);
         }
 
-        populateFields();
-
         setupListeners();
 
-        updateDisplay();
+        if (mReportLoader == null) {
+            updateDisplay();
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mDbHelper.close();
+        if (mReportLoader != null) {
+            mReportLoader.cancel(false);
+            mReportLoader = null;
+        }
+        if (mDateChecker != null) {
+            mDateChecker.cancel(false);
+            mDateChecker = null;
+        }
+        mDbHelper.release();
     }
 
     /**
@@ -215,16 +217,71 @@ public class ReportEdit extends Activity {
     }
 
     /**
-     * Fill form with data from the database
+     * Start loading the edited report; the form is disabled until it's loaded
      */
-    private void populateFields() {
+    private void loadReport() {
+        mDatePicker.setEnabled(false);
+        mValueText.setEnabled(false);
+        mSaveButton.setEnabled(false);
+        mReportLoader = new ReportLoader();
+        mReportLoader.execute(mRowId);
+    }
 
-        if (mReportCursor == null) {
-            return;
+    /**
+     * Loads data of an existing report
+     */
+    private class ReportLoader extends AsyncTask<Long, Void, Boolean> {
+
+        private long mReportTaskId;
+        private int mDate;
+        private String mValue;
+
+        @Override
+        protected Boolean doInBackground(Long... params) {
+            GoalTrackerDbAdapter dbHelper = GoalTrackerDbAdapter.acquire(ReportEdit.this);
+            try {
+                Cursor c = dbHelper.getReportPeer().fetchReport(params[0]);
+                try {
+                    if (c.getCount() == 0) {
+                        return false;
+                    }
+                    mReportTaskId = c.getLong(c.getColumnIndexOrThrow(ReportPeer.KEY_TASK_ID));
+                    mDate = c.getInt(c.getColumnIndexOrThrow(ReportPeer.KEY_DATE));
+                    mValue = c.getString(c.getColumnIndexOrThrow(ReportPeer.KEY_VALUE));
+                } finally {
+                    c.close();
+                }
+                return true;
+            } finally {
+                dbHelper.release();
+            }
         }
 
-        Cursor c = mReportCursor;
-        mValueText.setText(c.getString(c.getColumnIndexOrThrow(ReportPeer.KEY_VALUE)));
+        @Override
+        protected void onPostExecute(Boolean isLoaded) {
+            if (mReportLoader != this || isFinishing()) {
+                return;
+            }
+            mReportLoader = null;
+            if (!isLoaded) {
+                // Report doesn't exist (anymore)
+                finish();
+                return;
+            }
+
+            mTaskId = mReportTaskId;
+
+            // Convert date from epoch day to a Calendar object
+            Util.setEpochDay(mCalendar, mDate);
+
+            // Fill form with data from the database
+            mValueText.setText(mValue);
+            mFormChanged = false;
+
+            mDatePicker.setEnabled(true);
+            mValueText.setEnabled(true);
+            updateDisplay();
+        }
     }
 
     /**
@@ -279,37 +336,64 @@ public class ReportEdit extends Activity {
         String dateString = android.text.format.DateFormat.format("E, MMM d, yyyy", mCalendar).toString();
         mDatePicker.setText(dateString);
 
-        // Checks if report with given date already exists; if so, displays
-        // error message and disables "Save" button
-        if (reportWithCurrentDateExists()) {
-            mDateError.setVisibility(View.VISIBLE);
-            mSaveButton.setEnabled(false);
-        } else {
-            mDateError.setVisibility(View.GONE);
-            mSaveButton.setEnabled(true);
+        // Checks in background if report with given date already exists
+        if (mDateChecker != null) {
+            mDateChecker.cancel(false);
         }
+        mDateChecker = new DateChecker(mTaskId, mRowId);
+        mDateChecker.execute(Util.toEpochDay(mCalendar));
     }
 
     /**
-     * Check whether a report with the current date already exists
-     *
-     * @return True if report with the current date exists, false otherwise
+     * Checks whether another report of the task with the given date already
+     * exists; if so, displays error message and disables "Save" button
      */
-    private boolean reportWithCurrentDateExists() {
-        boolean exists = false;
-        String sqlDateString = android.text.format.DateFormat.format("yyyy-MM-dd", mCalendar).toString();
-        Cursor reportCursor = mDbHelper.getReportPeer().fetchReportByTaskIdAndDate(mTaskId, sqlDateString);
-        startManagingCursor(reportCursor);
-        if (reportCursor != null && reportCursor.getCount() > 0) {
-            long rowId = reportCursor.getLong(reportCursor.getColumnIndexOrThrow(ReportPeer.KEY_ID));
-            if (mRowId == null || mRowId != rowId) {
-                exists = true;
+    private class DateChecker extends AsyncTask<Integer, Void, Boolean> {
+
+        private final long mCheckedTaskId;
+        private final Long mCheckedRowId;
+
+        public DateChecker(long taskId, Long rowId) {
+            mCheckedTaskId = taskId;
+            mCheckedRowId = rowId;
+        }
+
+        @Override
+        protected Boolean doInBackground(Integer... params) {
+            GoalTrackerDbAdapter dbHelper = GoalTrackerDbAdapter.acquire(ReportEdit.this);
+            try {
+                boolean exists = false;
+                Cursor reportCursor = dbHelper.getReportPeer().
+                        fetchReportByTaskIdAndDate(mCheckedTaskId, params[0]);
+                if (reportCursor != null && reportCursor.getCount() > 0) {
+                    long rowId = reportCursor.getLong(reportCursor.getColumnIndexOrThrow(ReportPeer.KEY_ID));
+                    if (mCheckedRowId == null || mCheckedRowId != rowId) {
+                        exists = true;
+                    }
+                }
+                if (reportCursor != null) {
+                    reportCursor.close();
+                }
+                return exists;
+            } finally {
+                dbHelper.release();
             }
         }
-        if (reportCursor != null) {
-            reportCursor.close();
+
+        @Override
+        protected void onPostExecute(Boolean exists) {
+            if (mDateChecker != this || isFinishing()) {
+                return;
+            }
+            mDateChecker = null;
+            if (exists) {
+                mDateError.setVisibility(View.VISIBLE);
+                mSaveButton.setEnabled(false);
+            } else {
+                mDateError.setVisibility(View.GONE);
+                mSaveButton.setEnabled(true);
+            }
         }
-        return exists;
     }
 
     /**
@@ -324,25 +408,21 @@ public class ReportEdit extends Activity {
     }
 
     /**
-     * Save form data to the database
+     * Save form data to the database. Report is saved in background; if a
+     * report with the same date already exists, saving fails on the unique
+     * date index and an error message is displayed.
      */
     private void saveForm() {
 
-        if (reportWithCurrentDateExists()) {
-            // Can't save this case
-            return;
-        }
-
-        boolean isNewReport = (mRowId == null);
+        final boolean isNewReport = (mRowId == null);
 
         // Get field values from the form elements
 
         // Date
-        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-        String date = df.format(mCalendar.getTime());
+        final int date = Util.toEpochDay(mCalendar);
 
         // Value
-        Double value;
+        double value;
         try {
             value = Double.valueOf(mValueText.getText().toString());
         } catch (NumberFormatException e) {
@@ -350,22 +430,46 @@ public class ReportEdit extends Activity {
         }
 
         // Create/update report
-        boolean isSaved;
-        if (isNewReport) {
-            mRowId = mDbHelper.getReportPeer().createReport(mTaskId, date, value);
-            isSaved = (mRowId != 0);
-        } else {
-            isSaved = mDbHelper.getReportPeer().updateReport(mRowId, date, value);
-        }
+        final GoalTrackerDbAdapter dbHelper = mDbHelper;
+        final long taskId = mTaskId;
+        final long rowId = isNewReport ? 0 : mRowId;
+        final double reportValue = value;
+        final Context context = getApplicationContext();
 
-        // Show toast notification
-        if (isSaved) {
-            int toastMessageId = isNewReport ?
-                    R.string.message_report_created :
-                    R.string.message_report_updated;
-            Toast toast = Toast.makeText(getApplicationContext(), toastMessageId, Toast.LENGTH_SHORT);
-            toast.show();
-        }
+        mDbHelper.getWriteQueue().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                ReportPeer reportPeer = dbHelper.getReportPeer();
+                if (isNewReport) {
+                    return reportPeer.createReport(taskId, date, reportValue) != -1;
+                } else {
+                    return reportPeer.updateReport(rowId, date, reportValue);
+                }
+            }
+        }, new DbWriteQueue.Callback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean isSaved) {
+                int toastMessageId;
+                if (!isSaved) {
+                    toastMessageId = R.string.report_error_date_exists;
+                } else if (isNewReport) {
+                    toastMessageId = R.string.message_report_created;
+                } else {
+                    toastMessageId = R.string.message_report_updated;
+                }
+                Toast toast = Toast.makeText(context, toastMessageId, Toast.LENGTH_SHORT);
+                toast.show();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                int toastMessageId = (e instanceof SQLiteConstraintException) ?
+                        R.string.report_error_date_exists :
+                        R.string.message_save_failed;
+                Toast toast = Toast.makeText(context, toastMessageId, Toast.LENGTH_SHORT);
+                toast.show();
+            }
+        });
     }
 
     /**
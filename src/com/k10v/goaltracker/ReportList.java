@@ -5,6 +5,8 @@ import android.app.ListActivity;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -12,6 +14,8 @@ import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.Window;
+import android.widget.AbsListView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
@@ -30,9 +34,23 @@ public class ReportList extends ListActivity {
     public static final int MENU_ID_EDIT_REPORT = Menu.FIRST + 1;
     public static final int MENU_ID_DELETE_REPORT = Menu.FIRST + 2;
 
+    /**
+     * Number of reports loaded at once
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * Next page is loaded when the user scrolls this close (in rows) to the
+     * end of the list
+     */
+    private static final int LOAD_MORE_THRESHOLD = 10;
+
     private GoalTrackerDbAdapter mDbHelper;
-    private Cursor mTaskCursor;
-    private Cursor mReportsCursor;
+    private ReportsLoader mReportsLoader;
+    private PageLoader mPageLoader;
+    private PagedCursor mReportsCursor;
+    private SimpleCursorAdapter mReportsAdapter;
+    private boolean mHasMoreReports;
     private long mTaskId;
 
     /**
@@ -48,11 +66,14 @@ public class ReportList extends ListActivity {
 
         super.onCreate(savedInstanceState);
 
+        // Progress indicator is shown while the reports are loading
+        requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
+
         setContentView(R.layout.report_list);
+        ((TextView) findViewById(android.R.id.empty)).setText(R.string.message_loading);
 
         // Prepare DB adapter
-        mDbHelper = new GoalTrackerDbAdapter(this);
-        mDbHelper.open();
+        mDbHelper = GoalTrackerDbAdapter.acquire(this);
 
         // Retrieve task ID: first check if it's stored in saved state, if not
         // then check Intent's extras. If ID is empty, it is an error.
@@ -69,16 +90,26 @@ public class ReportList extends ListActivity {
             // Error
             Log.e(TAG, "Task ID is empty");
             finish();
+            return;
         }
 
-        // Retrieve task details from the database and use task title as an
-        // activity title
-        mTaskCursor = mDbHelper.getTaskPeer().fetchTask(mTaskId);
-        setTitle(mTaskCursor.getString(mTaskCursor.getColumnIndex(TaskPeer.KEY_TITLE)));
-
         fillReportsList();
 
         registerForContextMenu(getListView());
+
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem,
+                    int visibleItemCount, int totalItemCount) {
+                if (firstVisibleItem + visibleItemCount + LOAD_MORE_THRESHOLD >= totalItemCount) {
+                    loadMoreReports();
+                }
+            }
+
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+        });
     }
 
     @Override
@@ -90,7 +121,12 @@ public class ReportList extends ListActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mDbHelper.close();
+        if (mReportsLoader != null) {
+            mReportsLoader.cancel(false);
+            mReportsLoader = null;
+        }
+        cancelPageLoader();
+        mDbHelper.release();
     }
 
     /**
@@ -133,7 +169,7 @@ public class ReportList extends ListActivity {
         AdapterContextMenuInfo info = (AdapterContextMenuInfo) menuInfo;
         Cursor c = mReportsCursor;
         c.moveToPosition(info.position);
-        String title = c.getString(c.getColumnIndexOrThrow(ReportPeer.KEY_DATE));
+        String title = Util.formatDate(c.getInt(c.getColumnIndexOrThrow(ReportPeer.KEY_DATE)), this);
         menu.setHeaderTitle(title);
 
         // Add menu items
@@ -182,7 +218,15 @@ public class ReportList extends ListActivity {
     @Override
     protected void onActivityResult(int requestCode, int resultCode,
             Intent intent) {
-        fillReportsList();
+        // Reload the list after the changes made by the other activity are saved
+        mDbHelper.getWriteQueue().runAfterWrites(new Runnable() {
+            @Override
+            public void run() {
+                if (!isFinishing()) {
+                    fillReportsList();
+                }
+            }
+        });
     }
 
     /**
@@ -240,13 +284,129 @@ public class ReportList extends ListActivity {
     }
 
     /**
-     * Fills/reloads the list of reports.
+     * Fills/reloads the list of reports. Only the latest reports are loaded
+     * (in background), the rest is loaded page by page when the list is
+     * scrolled (when reloading, the list keeps as many reports as it had
+     * before). The task title is used as an activity title.
      */
     private void fillReportsList() {
-        mReportsCursor = mDbHelper.getReportPeer().
-                fetchReportsByTask(mTaskId, true);
+        int limit = PAGE_SIZE;
+        if (mReportsCursor != null) {
+            limit = Math.max(limit, mReportsCursor.getCount());
+        }
+
+        if (mReportsLoader != null) {
+            mReportsLoader.cancel(false);
+        }
+        cancelPageLoader();
+        setProgressBarIndeterminateVisibility(true);
+        mReportsLoader = new ReportsLoader(limit);
+        mReportsLoader.execute(mTaskId);
+    }
+
+    /**
+     * Loads the task title and the first page of reports
+     */
+    private class ReportsLoader extends AsyncTask<Long, Void, Cursor> {
+
+        private int mLimit;
+        private String mTitle;
+
+        public ReportsLoader(int limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        protected Cursor doInBackground(Long... params) {
+
+            GoalTrackerDbAdapter dbHelper = GoalTrackerDbAdapter.acquire(ReportList.this);
+            try {
+                Cursor taskCursor = dbHelper.getTaskPeer().fetchTask(params[0]);
+                try {
+                    if (taskCursor.getCount() == 0) {
+                        return null;
+                    }
+                    mTitle = taskCursor.getString(taskCursor.getColumnIndexOrThrow(TaskPeer.KEY_TITLE));
+                } finally {
+                    taskCursor.close();
+                }
+
+                Cursor firstPage = dbHelper.getReportPeer().
+                        fetchReportsBefore(params[0], Integer.MAX_VALUE, mLimit);
+
+                // Run the query now rather than when the list is drawn
+                firstPage.getCount();
+
+                if (isCancelled()) {
+                    firstPage.close();
+                    return null;
+                }
+                return firstPage;
+            } finally {
+                dbHelper.release();
+            }
+        }
+
+        /**
+         * Called instead of onPostExecute() if the loader is cancelled after
+         * the reports are loaded (API 11+)
+         */
+        @Override
+        protected void onCancelled(Cursor firstPage) {
+            if (firstPage != null) {
+                firstPage.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor firstPage) {
+            // Before API 11 a loader cancelled after loading still gets here
+            if (mReportsLoader != this || isFinishing()) {
+                if (firstPage != null) {
+                    firstPage.close();
+                }
+                return;
+            }
+            setProgressBarIndeterminateVisibility(false);
+            mReportsLoader = null;
+            if (firstPage == null) {
+                // Task doesn't exist (anymore)
+                finish();
+                return;
+            }
+            setTitle(mTitle);
+            ((TextView) findViewById(android.R.id.empty)).setText(R.string.message_no_reports);
+            showReports(firstPage, mLimit);
+        }
+    }
+
+    /**
+     * Shows loaded reports in the list
+     *
+     * @param firstPage
+     * @param limit Number of reports requested for the first page
+     */
+    private void showReports(Cursor firstPage, int limit) {
+
+        mHasMoreReports = (firstPage.getCount() == limit);
+        PagedCursor oldCursor = mReportsCursor;
+        mReportsCursor = new PagedCursor(firstPage);
         startManagingCursor(mReportsCursor);
 
+        // Requery (e.g. when the activity is restarted) drops all pages but
+        // the first one, they are loaded again when the list is scrolled
+        final PagedCursor reportsCursor = mReportsCursor;
+        reportsCursor.registerDataSetObserver(new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                if (reportsCursor == mReportsCursor) {
+                    // A page being loaded may not follow the requeried ones
+                    cancelPageLoader();
+                    mHasMoreReports = (reportsCursor.getCount() >= PAGE_SIZE);
+                }
+            }
+        });
+
         String[] from = new String[] {
                 ReportPeer.KEY_DATE,
                 ReportPeer.KEY_VALUE
@@ -258,6 +418,7 @@ public class ReportList extends ListActivity {
 
         SimpleCursorAdapter cursorAdapter = new SimpleCursorAdapter(
                 this, R.layout.report_row, mReportsCursor, from, to);
+        mReportsAdapter = cursorAdapter;
 
         final Context context = this;
 
@@ -267,8 +428,7 @@ public class ReportList extends ListActivity {
 
                 if (columnIndex == cursor.getColumnIndexOrThrow(ReportPeer.KEY_DATE)) {
                     TextView tv = (TextView) view;
-                    String sqlDateString = cursor.getString(columnIndex);
-                    tv.setText(Util.formatDate(sqlDateString, context));
+                    tv.setText(Util.formatDate(cursor.getInt(columnIndex), context));
                     return true;
                 }
 
@@ -282,5 +442,99 @@ public class ReportList extends ListActivity {
             }
         });
         setListAdapter(cursorAdapter);
+
+        if (oldCursor != null) {
+            stopManagingCursor(oldCursor);
+            oldCursor.close();
+        }
+    }
+
+    /**
+     * Starts loading the next page of (older) reports, unless it's already
+     * being loaded
+     */
+    private void loadMoreReports() {
+        if (!mHasMoreReports || mPageLoader != null || mReportsLoader != null) {
+            return;
+        }
+
+        Cursor lastPage = mReportsCursor.getLastPage();
+        lastPage.moveToLast();
+        int oldestDate = lastPage.getInt(lastPage.getColumnIndexOrThrow(ReportPeer.KEY_DATE));
+
+        mPageLoader = new PageLoader(mReportsCursor);
+        mPageLoader.execute(oldestDate);
+    }
+
+    private void cancelPageLoader() {
+        if (mPageLoader != null) {
+            mPageLoader.cancel(false);
+            mPageLoader = null;
+        }
+    }
+
+    /**
+     * Loads the page of reports older than the given date
+     */
+    private class PageLoader extends AsyncTask<Integer, Void, Cursor> {
+
+        private final PagedCursor mReports;
+
+        public PageLoader(PagedCursor reports) {
+            mReports = reports;
+        }
+
+        @Override
+        protected Cursor doInBackground(Integer... params) {
+
+            GoalTrackerDbAdapter dbHelper = GoalTrackerDbAdapter.acquire(ReportList.this);
+            try {
+                Cursor page = dbHelper.getReportPeer().
+                        fetchReportsBefore(mTaskId, params[0], PAGE_SIZE);
+
+                // Run the query now rather than when the list is drawn
+                page.getCount();
+
+                if (isCancelled()) {
+                    page.close();
+                    return null;
+                }
+                return page;
+            } finally {
+                dbHelper.release();
+            }
+        }
+
+        /**
+         * Called instead of onPostExecute() if the loader is cancelled after
+         * the page is loaded (API 11+)
+         */
+        @Override
+        protected void onCancelled(Cursor page) {
+            if (page != null) {
+                page.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor page) {
+            // Before API 11 a loader cancelled after loading still gets here;
+            // the page is also dropped if the list has been reloaded since
+            if (mPageLoader != this || mReportsCursor != mReports || isFinishing()) {
+                if (page != null) {
+                    page.close();
+                }
+                return;
+            }
+            mPageLoader = null;
+            int count = page.getCount();
+            mHasMoreReports = (count == PAGE_SIZE);
+            if (count == 0) {
+                page.close();
+                return;
+            }
+            mReportsCursor.addPage(page);
+            mReportsAdapter.notifyDataSetChanged();
+        }
     }
 }
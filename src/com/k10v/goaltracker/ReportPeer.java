@@ -1,11 +1,15 @@
 package com.k10v.goaltracker;
 
-import android.content.ContentValues;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
-public class ReportPeer extends BasePeer {
+public class ReportPeer extends BasePeer implements DbWriteQueue.TransactionListener {
 
     public static final String TABLE = "reports";
 
@@ -15,6 +19,150 @@ public class ReportPeer extends BasePeer {
     public static final String KEY_RELATIVE = "relative";
     public static final String KEY_VALUE = "value";
 
+    /**
+     * Default number of reports inserted in one transaction by
+     * bulkInsertReports()
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    private static final String SQL_INSERT_COLUMNS = " INTO " + TABLE + " ("
+            + KEY_TASK_ID + ", " + KEY_DATE + ", " + KEY_VALUE + ", "
+            + KEY_RELATIVE + ") VALUES (?, ?, ?, ?)";
+
+    private static final String SQL_INSERT = "INSERT" + SQL_INSERT_COLUMNS;
+
+    private static final String SQL_TOTAL_CHANGES = "SELECT total_changes()";
+
+    private static final String SQL_LAST_ID = "SELECT IFNULL(MAX(" + KEY_ID
+            + "), 0) FROM " + TABLE;
+
+    // Reports of deleted tasks may still exist until they're purged
+    private static final String SQL_COUNT = "SELECT COUNT(*) FROM " + TABLE
+            + " WHERE " + KEY_TASK_ID + " IN (SELECT " + TaskPeer.KEY_ID
+            + " FROM " + TaskPeer.TABLE + " WHERE " + TaskPeer.KEY_DELETED + " = 0)";
+
+    private static final String SQL_UPDATE = "UPDATE " + TABLE + " SET "
+            + KEY_DATE + " = ?, " + KEY_VALUE + " = ?, " + KEY_RELATIVE
+            + " = ? WHERE " + KEY_ID + " = ?";
+
+    private static final String SQL_DELETE = "DELETE FROM " + TABLE
+            + " WHERE " + KEY_ID + " = ?";
+
+    private static final String SQL_DELETE_BY_TASK = "DELETE FROM " + TABLE
+            + " WHERE " + KEY_TASK_ID + " = ?";
+
+    /**
+     * Defines what bulkInsertReports() does with a report which has the same
+     * date as an already existing report of the task
+     */
+    public enum ConflictPolicy {
+
+        /**
+         * Keep the existing report and skip the new one
+         */
+        SKIP("INSERT OR IGNORE" + SQL_INSERT_COLUMNS),
+
+        /**
+         * Replace the existing report with the new one
+         */
+        REPLACE("INSERT OR REPLACE" + SQL_INSERT_COLUMNS),
+
+        /**
+         * Stop with an exception, the current chunk of reports is rolled back
+         */
+        FAIL("INSERT OR ABORT" + SQL_INSERT_COLUMNS);
+
+        private final String mSql;
+
+        private ConflictPolicy(String sql) {
+            mSql = sql;
+        }
+    }
+
+    /**
+     * Report details used by bulk operations
+     */
+    public static class Report {
+
+        /**
+         * Epoch day
+         */
+        public int date;
+
+        public double value;
+
+        public boolean relative;
+    }
+
+    /**
+     * Change of a report, passed to listeners after it's committed
+     */
+    public static class Change {
+
+        public enum Type {
+            ADDED,
+            UPDATED,
+            DELETED,
+
+            /**
+             * Many reports of the task have changed (e.g. imported), they
+             * should be loaded again
+             */
+            RELOAD
+        }
+
+        public final Type type;
+        public final long taskId;
+
+        /**
+         * Date (epoch day) and value of the report before the change, used
+         * by UPDATED and DELETED
+         */
+        public final int oldDate;
+        public final double oldValue;
+
+        /**
+         * Date (epoch day) and value of the report after the change, used by
+         * ADDED and UPDATED
+         */
+        public final int date;
+        public final double value;
+
+        public Change(Type type, long taskId, int oldDate, double oldValue,
+                int date, double value) {
+            this.type = type;
+            this.taskId = taskId;
+            this.oldDate = oldDate;
+            this.oldValue = oldValue;
+            this.date = date;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Receives committed changes of reports, in the main thread
+     */
+    public interface ChangeListener {
+
+        /**
+         * @param changes Changes committed together, in the order they were
+         *        made
+         */
+        void onReportsChanged(List<Change> changes);
+    }
+
+    /**
+     * Changes made in the current thread which are not committed yet (writes
+     * may be nested in an outer transaction, e.g. a batch of DbWriteQueue)
+     */
+    private final ThreadLocal<ArrayList<Change>> mPendingChanges =
+            new ThreadLocal<ArrayList<Change>>() {
+                @Override
+                protected ArrayList<Change> initialValue() {
+                    return new ArrayList<Change>();
+                }
+            };
+
     public ReportPeer(GoalTrackerDbAdapter dbAdapter, SQLiteDatabase mDb) {
         super(dbAdapter, mDb);
     }
@@ -24,33 +172,45 @@ public class ReportPeer extends BasePeer {
      * rowId for that report, otherwise return a -1 to indicate failure.
      *
      * @param taskId
-     * @param date
+     * @param date Epoch day
      * @param value
      * @param relative
      * @return rowId or -1 if failed
      */
-    public long createReport(long taskId, String date, double value,
+    public long createReport(long taskId, int date, double value,
             boolean relative) {
-
-        ContentValues values = new ContentValues();
-
-        values.put(KEY_TASK_ID, taskId);
-        values.put(KEY_DATE, date);
-        values.put(KEY_VALUE, value);
-        values.put(KEY_RELATIVE, relative);
-
-        return mDb.insert(TABLE, null, values);
+        SQLiteStatement statement = getStatement(SQL_INSERT);
+        statement.bindLong(1, taskId);
+        statement.bindLong(2, date);
+        statement.bindDouble(3, value);
+        statement.bindLong(4, relative ? 1 : 0);
+        boolean isSuccessful = false;
+        mDb.beginTransaction();
+        try {
+            long rowId = executeInsert(statement);
+            if (rowId != -1) {
+                getTaskStatsPeer().reportAdded(taskId, date, value);
+                getRollupPeer().rebuild(taskId, date);
+                addChange(new Change(Change.Type.ADDED, taskId, 0, 0, date, value));
+            }
+            mDb.setTransactionSuccessful();
+            isSuccessful = true;
+            return rowId;
+        } finally {
+            mDb.endTransaction();
+            writeEnded(isSuccessful);
+        }
     }
 
     /**
      * Create a new report
      *
      * @param taskId
-     * @param date
+     * @param date Epoch day
      * @param value
      * @return
      */
-    public long createReport(long taskId, String date, double value) {
+    public long createReport(long taskId, int date, double value) {
         return createReport(taskId, date, value, false);
     }
 
@@ -58,32 +218,59 @@ public class ReportPeer extends BasePeer {
      * Update the report with given ID using the details provided
      *
      * @param rowId
-     * @param date
+     * @param date Epoch day
      * @param value
      * @param relative
      * @return true if the report was successfully updated, false otherwise
      */
-    public boolean updateReport(long rowId, String date, double value,
+    public boolean updateReport(long rowId, int date, double value,
             boolean relative) {
-
-        ContentValues values = new ContentValues();
-
-        values.put(KEY_DATE, date);
-        values.put(KEY_VALUE, value);
-        values.put(KEY_RELATIVE, relative);
-
-        return mDb.update(TABLE, values, KEY_ID + "=" + rowId, null) > 0;
+        SQLiteStatement statement = getStatement(SQL_UPDATE);
+        statement.bindLong(1, date);
+        statement.bindDouble(2, value);
+        statement.bindLong(3, relative ? 1 : 0);
+        statement.bindLong(4, rowId);
+        boolean isSuccessful = false;
+        mDb.beginTransaction();
+        try {
+            boolean isUpdated = false;
+            Cursor c = fetchReport(rowId);
+            try {
+                if (c.getCount() > 0 && executeUpdateDelete(statement) > 0) {
+                    long taskId = c.getLong(c.getColumnIndexOrThrow(KEY_TASK_ID));
+                    int oldDate = c.getInt(c.getColumnIndexOrThrow(KEY_DATE));
+                    double oldValue = c.getDouble(c.getColumnIndexOrThrow(KEY_VALUE));
+                    getTaskStatsPeer().reportChanged(taskId, oldDate, oldValue,
+                            date, value);
+                    getRollupPeer().rebuild(taskId, oldDate);
+                    getRollupPeer().rebuild(taskId, date);
+                    addChange(new Change(Change.Type.UPDATED, taskId,
+                            oldDate, oldValue, date, value));
+                    isUpdated = true;
+                }
+            } finally {
+                c.close();
+            }
+            // Commit even if nothing was updated, otherwise an outer
+            // transaction would be rolled back
+            mDb.setTransactionSuccessful();
+            isSuccessful = true;
+            return isUpdated;
+        } finally {
+            mDb.endTransaction();
+            writeEnded(isSuccessful);
+        }
     }
 
     /**
      * Update the report with given ID using the details provided
      *
      * @param rowId
-     * @param date
+     * @param date Epoch day
      * @param value
      * @return true if the report was successfully updated, false otherwise
      */
-    public boolean updateReport(long rowId, String date, double value) {
+    public boolean updateReport(long rowId, int date, double value) {
         return updateReport(rowId, date, value, false);
     }
 
@@ -94,7 +281,36 @@ public class ReportPeer extends BasePeer {
      * @return true if deleted, false otherwise
      */
     public boolean deleteReport(long rowId) {
-        return mDb.delete(TABLE, KEY_ID + "=" + rowId, null) > 0;
+        SQLiteStatement statement = getStatement(SQL_DELETE);
+        statement.bindLong(1, rowId);
+        boolean isSuccessful = false;
+        mDb.beginTransaction();
+        try {
+            boolean isDeleted = false;
+            Cursor c = fetchReport(rowId);
+            try {
+                if (c.getCount() > 0 && executeUpdateDelete(statement) > 0) {
+                    long taskId = c.getLong(c.getColumnIndexOrThrow(KEY_TASK_ID));
+                    int date = c.getInt(c.getColumnIndexOrThrow(KEY_DATE));
+                    double value = c.getDouble(c.getColumnIndexOrThrow(KEY_VALUE));
+                    getTaskStatsPeer().reportRemoved(taskId, date, value);
+                    getRollupPeer().rebuild(taskId, date);
+                    addChange(new Change(Change.Type.DELETED, taskId,
+                            date, value, 0, 0));
+                    isDeleted = true;
+                }
+            } finally {
+                c.close();
+            }
+            // Commit even if nothing was deleted, otherwise an outer
+            // transaction would be rolled back
+            mDb.setTransactionSuccessful();
+            isSuccessful = true;
+            return isDeleted;
+        } finally {
+            mDb.endTransaction();
+            writeEnded(isSuccessful);
+        }
     }
 
     /**
@@ -104,7 +320,117 @@ public class ReportPeer extends BasePeer {
      * @return true if deleted, false otherwise
      */
     public boolean deleteReportsByTask(long taskId) {
-        return mDb.delete(TABLE, KEY_TASK_ID + "=" + taskId, null) > 0;
+        SQLiteStatement statement = getStatement(SQL_DELETE_BY_TASK);
+        statement.bindLong(1, taskId);
+        boolean isSuccessful = false;
+        mDb.beginTransaction();
+        try {
+            boolean isDeleted = executeUpdateDelete(statement) > 0;
+            getTaskStatsPeer().deleteStats(taskId);
+            getRollupPeer().deleteRollups(taskId);
+            if (isDeleted) {
+                addChange(new Change(Change.Type.RELOAD, taskId, 0, 0, 0, 0));
+            }
+            mDb.setTransactionSuccessful();
+            isSuccessful = true;
+            return isDeleted;
+        } finally {
+            mDb.endTransaction();
+            writeEnded(isSuccessful);
+        }
+    }
+
+    /**
+     * Insert many reports of the given task. Reports are inserted in chunks,
+     * each chunk in a single transaction, so the import doesn't pay for a
+     * separate commit per report. Iterator is consumed lazily and may return
+     * the same Report object every time. Each chunk is merged into task
+     * statistics and rollups of its date range are rebuilt; if the policy is
+     * REPLACE, statistics are rebuilt once at the end when any reports have
+     * actually been replaced.
+     *
+     * @param taskId
+     * @param reports
+     * @param policy What to do with reports with already existing dates
+     * @param chunkSize Max number of reports inserted in one transaction
+     * @return number of inserted reports
+     * @throws SQLException if insert failed (or date conflict is found and
+     *         policy is FAIL); chunks inserted before that stay committed
+     * @throws IllegalArgumentException if chunkSize is less than 1
+     */
+    public int bulkInsertReports(long taskId, Iterator<Report> reports,
+            ConflictPolicy policy, int chunkSize) throws SQLException {
+
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+
+        SQLiteStatement statement = getStatement(policy.mSql);
+        SQLiteStatement totalChanges = getStatement(SQL_TOTAL_CHANGES);
+        SQLiteStatement lastId = getStatement(SQL_LAST_ID);
+        int inserted = 0;
+
+        try {
+            while (reports.hasNext()) {
+                boolean isSuccessful = false;
+                mDb.beginTransaction();
+                try {
+                    long changesBefore = totalChanges.simpleQueryForLong();
+                    long lastOldId = lastId.simpleQueryForLong();
+                    int minDate = Integer.MAX_VALUE;
+                    int maxDate = Integer.MIN_VALUE;
+                    for (int i = 0; i < chunkSize && reports.hasNext(); i++) {
+                        Report report = reports.next();
+                        minDate = Math.min(minDate, report.date);
+                        maxDate = Math.max(maxDate, report.date);
+                        statement.bindLong(1, taskId);
+                        statement.bindLong(2, report.date);
+                        statement.bindDouble(3, report.value);
+                        statement.bindLong(4, report.relative ? 1 : 0);
+                        statement.execute();
+                    }
+                    long chunkInserted = totalChanges.simpleQueryForLong() - changesBefore;
+                    inserted += chunkInserted;
+                    if (chunkInserted > 0) {
+                        getTaskStatsPeer().reportsInserted(taskId, lastOldId);
+                        getRollupPeer().rebuild(taskId, minDate, maxDate);
+                        addChange(new Change(Change.Type.RELOAD, taskId, 0, 0, 0, 0));
+                    }
+                    mDb.setTransactionSuccessful();
+                    isSuccessful = true;
+                } finally {
+                    mDb.endTransaction();
+                    writeEnded(isSuccessful);
+                }
+            }
+        } finally {
+            if (policy == ConflictPolicy.REPLACE && inserted > 0) {
+                // Replaced reports are still counted in statistics
+                rebuildStatsIfCountIsWrong(taskId);
+            }
+        }
+
+        return inserted;
+    }
+
+    private void rebuildStatsIfCountIsWrong(long taskId) {
+        boolean isSuccessful = false;
+        mDb.beginTransaction();
+        try {
+            if (getTaskStatsPeer().rebuildIfCountIsWrong(taskId)) {
+                addChange(new Change(Change.Type.RELOAD, taskId, 0, 0, 0, 0));
+            }
+            mDb.setTransactionSuccessful();
+            isSuccessful = true;
+        } finally {
+            mDb.endTransaction();
+            writeEnded(isSuccessful);
+        }
+    }
+
+    public int bulkInsertReports(long taskId, Iterator<Report> reports,
+            ConflictPolicy policy) throws SQLException {
+        return bulkInsertReports(taskId, reports, policy, DEFAULT_CHUNK_SIZE);
     }
 
     /**
@@ -117,7 +443,8 @@ public class ReportPeer extends BasePeer {
      */
     public Cursor fetchReportsByTask(long taskId, boolean reverseOrder) {
         String sortDirection = reverseOrder ? "DESC" : "ASC";
-        return mDb.query(TABLE, getFields(), KEY_TASK_ID + "=" + taskId, null,
+        return mDb.query(TABLE, getFields(), KEY_TASK_ID + "=?",
+                new String[] { String.valueOf(taskId) },
                 null, null, KEY_DATE + " " + sortDirection);
     }
 
@@ -125,6 +452,76 @@ public class ReportPeer extends BasePeer {
         return fetchReportsByTask(taskId, false);
     }
 
+    /**
+     * Return a Cursor over reports of the given task with dates in the given
+     * range (inclusive), reports are sorted by date
+     *
+     * @param taskId
+     * @param fromDay Epoch day
+     * @param toDay Epoch day
+     * @param reverseOrder
+     * @return
+     */
+    public Cursor fetchReportsByTaskInRange(long taskId, int fromDay, int toDay,
+            boolean reverseOrder) {
+        String sortDirection = reverseOrder ? "DESC" : "ASC";
+        return mDb.query(TABLE, getFields(),
+                KEY_TASK_ID + "=? AND " + KEY_DATE + ">=? AND " + KEY_DATE + "<=?",
+                new String[] { String.valueOf(taskId), String.valueOf(fromDay),
+                        String.valueOf(toDay) },
+                null, null, KEY_DATE + " " + sortDirection);
+    }
+
+    public Cursor fetchReportsByTaskInRange(long taskId, int fromDay, int toDay) {
+        return fetchReportsByTaskInRange(taskId, fromDay, toDay, false);
+    }
+
+    /**
+     * Return a Cursor over at most limit reports of the given task which
+     * follow the given date, sorted by date. Use date of the last fetched
+     * report to get the next page.
+     *
+     * @param taskId
+     * @param afterDay Epoch day, use Integer.MIN_VALUE to start from the
+     *        first report
+     * @param limit
+     * @return
+     */
+    public Cursor fetchReportsAfter(long taskId, int afterDay, int limit) {
+        return mDb.query(TABLE, getFields(),
+                KEY_TASK_ID + "=? AND " + KEY_DATE + ">?",
+                new String[] { String.valueOf(taskId), String.valueOf(afterDay) },
+                null, null, KEY_DATE + " ASC", String.valueOf(limit));
+    }
+
+    /**
+     * Return a Cursor over at most limit reports of the given task which
+     * precede the given date, sorted by date in reverse order (i.e. the
+     * latest report first). Use date of the last fetched report to get the
+     * next page.
+     *
+     * @param taskId
+     * @param beforeDay Epoch day, use Integer.MAX_VALUE to start from the
+     *        latest report
+     * @param limit
+     * @return
+     */
+    public Cursor fetchReportsBefore(long taskId, int beforeDay, int limit) {
+        return mDb.query(TABLE, getFields(),
+                KEY_TASK_ID + "=? AND " + KEY_DATE + "<?",
+                new String[] { String.valueOf(taskId), String.valueOf(beforeDay) },
+                null, null, KEY_DATE + " DESC", String.valueOf(limit));
+    }
+
+    /**
+     * Returns total number of reports of all tasks (except deleted ones)
+     *
+     * @return
+     */
+    public int countReports() {
+        return (int) getStatement(SQL_COUNT).simpleQueryForLong();
+    }
+
     /**
      * Return a Cursor positioned at the report that matches the given rowId
      *
@@ -134,8 +531,8 @@ public class ReportPeer extends BasePeer {
      */
     public Cursor fetchReport(long rowId) throws SQLException {
         Cursor mCursor = mDb.query(true, TABLE, getFields(),
-                KEY_ID + "=" + rowId,
-                null, null, null, null, null);
+                KEY_ID + "=?", new String[] { String.valueOf(rowId) },
+                null, null, null, null);
         if (mCursor != null) {
             mCursor.moveToFirst();
         }
@@ -147,20 +544,68 @@ public class ReportPeer extends BasePeer {
      * and date
      * 
      * @param taskId
-     * @param date Date in yyyy-MM-dd format
+     * @param date Epoch day
      * @return Cursor positioned to matching report, if found
      * @throws SQLException if report could not be found/retrieved
      */
-    public Cursor fetchReportByTaskIdAndDate(long taskId, String date) throws SQLException {
+    public Cursor fetchReportByTaskIdAndDate(long taskId, int date) throws SQLException {
         Cursor mCursor = mDb.query(true, TABLE, getFields(),
-                KEY_TASK_ID + "=" + taskId + " AND " + KEY_DATE + "= '" + date + "'",
-                null, null, null, null, null);
+                KEY_TASK_ID + "=? AND " + KEY_DATE + "=?",
+                new String[] { String.valueOf(taskId), String.valueOf(date) },
+                null, null, null, null);
         if (mCursor != null) {
             mCursor.moveToFirst();
         }
         return mCursor;
     }
 
+    /**
+     * Remember the change until the transaction it's made in is committed
+     *
+     * @param change
+     */
+    private void addChange(Change change) {
+        mPendingChanges.get().add(change);
+    }
+
+    /**
+     * Called after the transaction of a write has ended. If the write ran
+     * in an outer transaction, its changes are kept until that transaction
+     * ends (see onTransactionEnd()).
+     *
+     * @param isSuccessful Whether the write's transaction was marked as
+     *        successful
+     */
+    private void writeEnded(boolean isSuccessful) {
+        if (!mDb.inTransaction()) {
+            onTransactionEnd(isSuccessful);
+        }
+    }
+
+    /**
+     * Pass changes made in the current thread to the listeners if they are
+     * committed, forget them otherwise
+     */
+    @Override
+    public void onTransactionEnd(boolean isCommitted) {
+        ArrayList<Change> changes = mPendingChanges.get();
+        if (changes.isEmpty()) {
+            return;
+        }
+        if (isCommitted) {
+            dbAdapter.dispatchReportChanges(new ArrayList<Change>(changes));
+        }
+        changes.clear();
+    }
+
+    private TaskStatsPeer getTaskStatsPeer() {
+        return dbAdapter.getTaskStatsPeer();
+    }
+
+    private ReportRollupPeer getRollupPeer() {
+        return dbAdapter.getReportRollupPeer();
+    }
+
     /**
      * Returns list of all fields names in the table
      *
@@ -0,0 +1,367 @@
+package com.k10v.goaltracker;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Weekly and monthly summaries of task's reports (first, last, min and max
+ * value and number of reports in the period), so that a long history can be
+ * drawn from a few hundred rows instead of reading every report (sparklines
+ * in the task list are drawn this way).
+ *
+ * Summaries are kept up to date by ReportPeer: after every write, periods
+ * which contain the changed dates are recalculated from the reports (which is
+ * cheap, a period has at most 31 reports). Methods should be called in the
+ * same transaction as the report write.
+ */
+public class ReportRollupPeer extends BasePeer {
+
+    public static final String TABLE = "report_rollups";
+
+    public static final String KEY_TASK_ID = "task_id";
+    public static final String KEY_RESOLUTION = "resolution";
+    public static final String KEY_PERIOD = "period";
+    public static final String KEY_FIRST_DATE = "first_date";
+    public static final String KEY_FIRST_VALUE = "first_value";
+    public static final String KEY_LAST_DATE = "last_date";
+    public static final String KEY_LAST_VALUE = "last_value";
+    public static final String KEY_MIN_VALUE = "min_value";
+    public static final String KEY_MAX_VALUE = "max_value";
+    public static final String KEY_REPORT_COUNT = "report_count";
+
+    /**
+     * Length of a period of summarized reports
+     */
+    public enum Resolution {
+
+        /**
+         * Every report is a separate period (i.e. reports themselves, they are
+         * not stored in the rollups table)
+         */
+        DAY(0, 1) {
+            @Override
+            public int getPeriod(int epochDay) {
+                return epochDay;
+            }
+
+            @Override
+            public int getNextPeriod(int period) {
+                return period + 1;
+            }
+
+            @Override
+            String getPeriodSql(String column) {
+                return column;
+            }
+        },
+
+        /**
+         * Weeks starting on Monday
+         */
+        WEEK(1, 7) {
+            @Override
+            public int getPeriod(int epochDay) {
+                // 1970-01-01 was Thursday, so Mondays are days -3, 4, 11...
+                int dayOfWeek = (epochDay + 3) % 7;
+                return epochDay - (dayOfWeek < 0 ? dayOfWeek + 7 : dayOfWeek);
+            }
+
+            @Override
+            public int getNextPeriod(int period) {
+                return period + 7;
+            }
+
+            @Override
+            String getPeriodSql(String column) {
+                return "(" + column + " - ((" + column + " + 3) % 7 + 7) % 7)";
+            }
+        },
+
+        /**
+         * Calendar months
+         */
+        MONTH(2, 30) {
+            @Override
+            public int getPeriod(int epochDay) {
+                return epochDay - Util.ymdDay(Util.toYmd(epochDay)) + 1;
+            }
+
+            @Override
+            public int getNextPeriod(int period) {
+                int ymd = Util.toYmd(period);
+                int year = Util.ymdYear(ymd);
+                int month = Util.ymdMonth(ymd);
+                return (month == 12) ?
+                        Util.toEpochDay(year + 1, 1, 1) :
+                        Util.toEpochDay(year, month + 1, 1);
+            }
+
+            @Override
+            String getPeriodSql(String column) {
+                return "(" + column + " - CAST(strftime('%d', " + column
+                        + " * 86400, 'unixepoch') AS INTEGER) + 1)";
+            }
+        };
+
+        private final int mId;
+        private final int mDays;
+
+        private Resolution(int id, int days) {
+            mId = id;
+            mDays = days;
+        }
+
+        /**
+         * Returns value stored in the "resolution" column
+         *
+         * @return
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * Returns approximate length of the period in days
+         *
+         * @return
+         */
+        public int getDays() {
+            return mDays;
+        }
+
+        /**
+         * Returns the period which contains the given day; period is
+         * identified by its first day
+         *
+         * @param epochDay
+         * @return epoch day of the first day of the period
+         */
+        public abstract int getPeriod(int epochDay);
+
+        /**
+         * Returns the period which follows the given one
+         *
+         * @param period
+         * @return epoch day of the first day of the next period
+         */
+        public abstract int getNextPeriod(int period);
+
+        /**
+         * Returns SQL expression which calculates period of the given epoch
+         * day column, see getPeriod()
+         *
+         * @param column
+         * @return
+         */
+        abstract String getPeriodSql(String column);
+    }
+
+    /**
+     * Resolutions which are stored in the rollups table
+     */
+    private static final Resolution[] STORED_RESOLUTIONS = {
+        Resolution.WEEK, Resolution.MONTH
+    };
+
+    /**
+     * SQL which rebuilds rollups of the date range, for every stored
+     * resolution
+     */
+    private static final String[] SQL_REBUILD_RANGE =
+            new String[STORED_RESOLUTIONS.length];
+
+    static {
+        for (int i = 0; i < STORED_RESOLUTIONS.length; i++) {
+            SQL_REBUILD_RANGE[i] = getRebuildSql(STORED_RESOLUTIONS[i], true);
+        }
+    }
+
+    private static final String SQL_DELETE_RANGE = "DELETE FROM " + TABLE
+            + " WHERE " + KEY_TASK_ID + " = ? AND " + KEY_RESOLUTION + " = ? AND "
+            + KEY_PERIOD + " >= ? AND " + KEY_PERIOD + " < ?";
+
+    private static final String SQL_DELETE_BY_TASK = "DELETE FROM " + TABLE
+            + " WHERE " + KEY_TASK_ID + " = ?";
+
+    // Rollups and reports as rollups of a single report, so that both can be
+    // read the same way
+    private static final String SQL_SELECT_ROLLUPS = "SELECT "
+            + KEY_PERIOD + ", " + KEY_FIRST_DATE + ", " + KEY_FIRST_VALUE + ", "
+            + KEY_LAST_DATE + ", " + KEY_LAST_VALUE + ", " + KEY_MIN_VALUE + ", "
+            + KEY_MAX_VALUE + ", " + KEY_REPORT_COUNT + " FROM " + TABLE
+            + " WHERE " + KEY_TASK_ID + " = ? AND " + KEY_RESOLUTION + " = ? AND "
+            + KEY_PERIOD + " >= ? AND " + KEY_PERIOD + " <= ? ORDER BY " + KEY_PERIOD;
+
+    private static final String SQL_SELECT_REPORTS = "SELECT "
+            + ReportPeer.KEY_DATE + " AS " + KEY_PERIOD + ", "
+            + ReportPeer.KEY_DATE + " AS " + KEY_FIRST_DATE + ", "
+            + ReportPeer.KEY_VALUE + " AS " + KEY_FIRST_VALUE + ", "
+            + ReportPeer.KEY_DATE + " AS " + KEY_LAST_DATE + ", "
+            + ReportPeer.KEY_VALUE + " AS " + KEY_LAST_VALUE + ", "
+            + ReportPeer.KEY_VALUE + " AS " + KEY_MIN_VALUE + ", "
+            + ReportPeer.KEY_VALUE + " AS " + KEY_MAX_VALUE + ", "
+            + "1 AS " + KEY_REPORT_COUNT + " FROM " + ReportPeer.TABLE
+            + " WHERE " + ReportPeer.KEY_TASK_ID + " = ? AND "
+            + ReportPeer.KEY_DATE + " >= ? AND " + ReportPeer.KEY_DATE + " <= ? "
+            + "ORDER BY " + ReportPeer.KEY_DATE;
+
+    public ReportRollupPeer(GoalTrackerDbAdapter dbAdapter, SQLiteDatabase mDb) {
+        super(dbAdapter, mDb);
+    }
+
+    /**
+     * Calculate rollups of all tasks, used when the table is created
+     *
+     * @param db
+     */
+    static void rebuildAll(SQLiteDatabase db) {
+        for (Resolution resolution : STORED_RESOLUTIONS) {
+            db.execSQL(getRebuildSql(resolution, false));
+        }
+    }
+
+    /**
+     * Returns SQL which calculates rollups of the given resolution from the
+     * reports, either of all tasks or (if isRange is true) of a single task
+     * for reports in the given date range (arguments: task ID, first day,
+     * day after the last one)
+     *
+     * @param resolution
+     * @param isRange
+     * @return
+     */
+    private static String getRebuildSql(Resolution resolution, boolean isRange) {
+        String date = ReportPeer.KEY_DATE;
+        String value = ReportPeer.KEY_VALUE;
+        String taskId = ReportPeer.KEY_TASK_ID;
+        String valueAt = "(SELECT r." + value + " FROM " + ReportPeer.TABLE
+                + " r WHERE r." + taskId + " = g." + taskId + " AND r." + date
+                + " = g.";
+        return "INSERT INTO " + TABLE + " (" + KEY_TASK_ID + ", "
+                + KEY_RESOLUTION + ", " + KEY_PERIOD + ", " + KEY_FIRST_DATE + ", "
+                + KEY_FIRST_VALUE + ", " + KEY_LAST_DATE + ", " + KEY_LAST_VALUE + ", "
+                + KEY_MIN_VALUE + ", " + KEY_MAX_VALUE + ", " + KEY_REPORT_COUNT + ") "
+                + "SELECT g." + taskId + ", " + resolution.getId() + ", g.p, "
+                + "g.first_date, " + valueAt + "first_date), "
+                + "g.last_date, " + valueAt + "last_date), "
+                + "g.min_value, g.max_value, g.report_count FROM ("
+                + "SELECT " + taskId + ", " + resolution.getPeriodSql(date) + " AS p, "
+                + "MIN(" + date + ") AS first_date, MAX(" + date + ") AS last_date, "
+                + "MIN(" + value + ") AS min_value, MAX(" + value + ") AS max_value, "
+                + "COUNT(*) AS report_count FROM " + ReportPeer.TABLE
+                + (isRange ? " WHERE " + taskId + " = ? AND " + date + " >= ? AND "
+                        + date + " < ?" : "")
+                + " GROUP BY " + taskId + ", p) g";
+    }
+
+    /**
+     * Recalculate rollups of all periods which contain any day of the given
+     * date range
+     *
+     * @param taskId
+     * @param fromDay
+     * @param toDay
+     */
+    public void rebuild(long taskId, int fromDay, int toDay) {
+        for (int i = 0; i < STORED_RESOLUTIONS.length; i++) {
+
+            Resolution resolution = STORED_RESOLUTIONS[i];
+            int start = resolution.getPeriod(fromDay);
+            int end = resolution.getNextPeriod(resolution.getPeriod(toDay));
+
+            SQLiteStatement delete = getStatement(SQL_DELETE_RANGE);
+            delete.bindLong(1, taskId);
+            delete.bindLong(2, resolution.getId());
+            delete.bindLong(3, start);
+            delete.bindLong(4, end);
+            delete.execute();
+
+            SQLiteStatement insert = getStatement(SQL_REBUILD_RANGE[i]);
+            insert.bindLong(1, taskId);
+            insert.bindLong(2, start);
+            insert.bindLong(3, end);
+            insert.execute();
+        }
+    }
+
+    /**
+     * Recalculate rollups of the period which contains the given day
+     *
+     * @param taskId
+     * @param epochDay
+     */
+    public void rebuild(long taskId, int epochDay) {
+        rebuild(taskId, epochDay, epochDay);
+    }
+
+    /**
+     * Delete all rollups of the task
+     *
+     * @param taskId
+     */
+    public void deleteRollups(long taskId) {
+        SQLiteStatement statement = getStatement(SQL_DELETE_BY_TASK);
+        statement.bindLong(1, taskId);
+        statement.execute();
+    }
+
+    /**
+     * Returns the coarsest resolution which still gives at least the given
+     * number of periods in the date range, e.g. for a graph with one point
+     * per few pixels
+     *
+     * @param days Length of the date range
+     * @param points Wanted number of periods
+     * @return
+     */
+    public static Resolution chooseResolution(int days, int points) {
+        for (int i = STORED_RESOLUTIONS.length - 1; i >= 0; i--) {
+            Resolution resolution = STORED_RESOLUTIONS[i];
+            if (days / resolution.getDays() >= points) {
+                return resolution;
+            }
+        }
+        return Resolution.DAY;
+    }
+
+    /**
+     * Return a Cursor over rollups of the task which overlap the given date
+     * range, sorted by period. With DAY resolution, every report is returned
+     * as a separate period.
+     *
+     * @param taskId
+     * @param resolution
+     * @param fromDay
+     * @param toDay
+     * @return
+     */
+    public Cursor fetchRollups(long taskId, Resolution resolution, int fromDay,
+            int toDay) {
+        if (resolution == Resolution.DAY) {
+            return mDb.rawQuery(SQL_SELECT_REPORTS, new String[] {
+                    String.valueOf(taskId), String.valueOf(fromDay),
+                    String.valueOf(toDay) });
+        }
+        return mDb.rawQuery(SQL_SELECT_ROLLUPS, new String[] {
+                String.valueOf(taskId), String.valueOf(resolution.getId()),
+                String.valueOf(resolution.getPeriod(fromDay)),
+                String.valueOf(toDay) });
+    }
+
+    /**
+     * Return a Cursor over rollups of the task in the given date range, using
+     * the coarsest resolution which gives at least the given number of
+     * periods (see chooseResolution())
+     *
+     * @param taskId
+     * @param fromDay
+     * @param toDay
+     * @param points
+     * @return
+     */
+    public Cursor fetchRollups(long taskId, int fromDay, int toDay, int points) {
+        Resolution resolution = chooseResolution(toDay - fromDay + 1, points);
+        return fetchRollups(taskId, resolution, fromDay, toDay);
+    }
+}
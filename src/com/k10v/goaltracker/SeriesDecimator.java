@@ -0,0 +1,139 @@
+package com.k10v.goaltracker;
+
+/**
+ * Reduces a task series to one vertical span per pixel column (min/max
+ * decimation) when the graph shows more days than there are pixels, so that
+ * the number of lines to draw depends on the width of the graph and not on
+ * the number of days. Min and max values of every column are kept, so peaks
+ * lasting a single day remain visible.
+ *
+ * Results are cached until the series, the date range or the width change.
+ */
+public class SeriesDecimator {
+
+    // Cache key; series are never modified, so a new instance means new data
+    private SeriesIndex mSeriesIndex;
+    private int mMinDay;
+    private int mDateRange;
+    private int mWidth = -1;
+
+    private float mValueBefore;
+    private int mColumnCount;
+    private boolean[] mChanged = new boolean[0];
+    private float[] mLow = new float[0];
+    private float[] mHigh = new float[0];
+    private float[] mClose = new float[0];
+
+    private SeriesIndex.RangeStats mStats = new SeriesIndex.RangeStats();
+
+    /**
+     * Decimate the series unless the result for the same arguments is
+     * already calculated. Day N of the graph (the first day is 1) falls
+     * into column width * N / dateRange, same as on the canvas.
+     *
+     * @param seriesIndex
+     * @param minDay Epoch day of the first day of the graph
+     * @param dateRange Number of days in the graph
+     * @param width Width of the graph in pixels
+     */
+    public void update(SeriesIndex seriesIndex, int minDay, int dateRange, int width) {
+
+        if (seriesIndex == mSeriesIndex && minDay == mMinDay &&
+                dateRange == mDateRange && width == mWidth) {
+            return;
+        }
+
+        mSeriesIndex = seriesIndex;
+        mMinDay = minDay;
+        mDateRange = dateRange;
+        mWidth = width;
+
+        mColumnCount = width + 1;
+        if (mChanged.length < mColumnCount) {
+            mChanged = new boolean[mColumnCount];
+            mLow = new float[mColumnCount];
+            mHigh = new float[mColumnCount];
+            mClose = new float[mColumnCount];
+        }
+
+        // Value on the day before the graph
+        seriesIndex.query(minDay - 1, minDay - 1, mStats);
+        mValueBefore = mStats.endValue;
+
+        int firstDayN = 1;
+        for (int column = 0; column < mColumnCount; column++) {
+
+            // Last day N for which width * N / dateRange == column
+            int lastDayN = (int) Math.min(
+                    ((long) (column + 1) * dateRange - 1) / width, dateRange);
+
+            if (lastDayN < firstDayN) {
+                mChanged[column] = false;
+                continue;
+            }
+
+            seriesIndex.query(minDay + firstDayN - 1, minDay + lastDayN - 1, mStats);
+            mChanged[column] = (mStats.reportCount > 0);
+            mLow[column] = Math.min(mStats.minValue, mStats.startValue);
+            mHigh[column] = Math.max(mStats.maxValue, mStats.startValue);
+            mClose[column] = mStats.endValue;
+
+            firstDayN = lastDayN + 1;
+        }
+    }
+
+    /**
+     * Returns the value on the day before the first day of the graph
+     *
+     * @return
+     */
+    public float getValueBefore() {
+        return mValueBefore;
+    }
+
+    public int getColumnCount() {
+        return mColumnCount;
+    }
+
+    /**
+     * Returns true if there are reports on the days of the column
+     *
+     * @param column
+     * @return
+     */
+    public boolean isChanged(int column) {
+        return mChanged[column];
+    }
+
+    /**
+     * Returns the lowest value in the column, including the value the
+     * column starts with
+     *
+     * @param column
+     * @return
+     */
+    public float getLow(int column) {
+        return mLow[column];
+    }
+
+    /**
+     * Returns the highest value in the column, including the value the
+     * column starts with
+     *
+     * @param column
+     * @return
+     */
+    public float getHigh(int column) {
+        return mHigh[column];
+    }
+
+    /**
+     * Returns the value on the last day of the column
+     *
+     * @param column
+     * @return
+     */
+    public float getClose(int column) {
+        return mClose[column];
+    }
+}
@@ -0,0 +1,239 @@
+package com.k10v.goaltracker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers questions about any date range of a task series (value before and
+ * at the end of the range, min/max value and number of reports in the range)
+ * in logarithmic time. Min/max values are looked up in sparse tables built
+ * over the reports, so the cost doesn't depend on the length of the range.
+ *
+ * Indexes are immutable; appending a report to the index takes logarithmic
+ * time as well, other changes need a new index.
+ */
+public class SeriesIndex {
+
+    /**
+     * Statistics of a date range, filled by query()
+     */
+    public static class RangeStats {
+
+        /**
+         * Value on the day before the range
+         */
+        public float startValue;
+
+        /**
+         * Value on the last day of the range
+         */
+        public float endValue;
+
+        public float minValue;
+        public float maxValue;
+
+        /**
+         * Number of reports made in the range
+         */
+        public int reportCount;
+    }
+
+    private final TaskSeries mSeries;
+    private final DailyValues mDailyValues;
+    private final float mStartValue;
+
+    // mMin[k][i] is min value of reports i..i+2^k-1, same for mMax; arrays
+    // of all levels have the same length, with spare room for new reports
+    private final float[][] mMin;
+    private final float[][] mMax;
+
+    /**
+     * Number of reports covered by the tables in any index sharing them
+     */
+    private final AtomicInteger mUsed;
+
+    /**
+     * @param series
+     * @param dailyValues Daily values of the same series
+     * @param startValue Value before the first report
+     */
+    public SeriesIndex(TaskSeries series, DailyValues dailyValues, float startValue) {
+
+        mSeries = series;
+        mDailyValues = dailyValues;
+        mStartValue = startValue;
+
+        int size = series.size();
+        mUsed = new AtomicInteger(size);
+
+        int levels = (size == 0) ? 0 : log2(size) + 1;
+        mMin = new float[levels][];
+        mMax = new float[levels][];
+
+        if (levels == 0) {
+            return;
+        }
+
+        int capacity = TaskSeries.getCapacity(size);
+        mMin[0] = new float[capacity];
+        mMax[0] = new float[capacity];
+        for (int i = 0; i < size; i++) {
+            mMin[0][i] = mMax[0][i] = series.getValue(i);
+        }
+
+        for (int k = 1; k < levels; k++) {
+            int half = 1 << (k - 1);
+            int length = size - (1 << k) + 1;
+            float[] min = mMin[k] = new float[capacity];
+            float[] max = mMax[k] = new float[capacity];
+            float[] prevMin = mMin[k - 1];
+            float[] prevMax = mMax[k - 1];
+            for (int i = 0; i < length; i++) {
+                min[i] = Math.min(prevMin[i], prevMin[i + half]);
+                max[i] = Math.max(prevMax[i], prevMax[i + half]);
+            }
+        }
+    }
+
+    private SeriesIndex(TaskSeries series, DailyValues dailyValues, float startValue,
+            float[][] min, float[][] max, AtomicInteger used) {
+        mSeries = series;
+        mDailyValues = dailyValues;
+        mStartValue = startValue;
+        mMin = min;
+        mMax = max;
+        mUsed = used;
+    }
+
+    /**
+     * Build index of the series
+     *
+     * @param series
+     * @param startValue Value before the first report
+     * @return
+     */
+    public static SeriesIndex build(TaskSeries series, float startValue) {
+        return new SeriesIndex(series, DailyValues.build(series, startValue), startValue);
+    }
+
+    public TaskSeries getSeries() {
+        return mSeries;
+    }
+
+    /**
+     * Returns index of the series with the report added after the last
+     * report. Only one entry per table level is calculated, tables are
+     * shared with this index if possible.
+     *
+     * @param day Epoch day, must be after the day of the last report
+     * @param value
+     * @return
+     */
+    public SeriesIndex append(int day, float value) {
+
+        TaskSeries series = mSeries.append(day, value);
+        DailyValues dailyValues = mDailyValues.append(series);
+
+        int size = series.size();
+        int levels = log2(size) + 1;
+        float[][] min = new float[levels][];
+        float[][] max = new float[levels][];
+        System.arraycopy(mMin, 0, min, 0, Math.min(mMin.length, levels));
+        System.arraycopy(mMax, 0, max, 0, Math.min(mMax.length, levels));
+
+        AtomicInteger used = mUsed;
+        int capacity = (mMin.length > 0) ? mMin[0].length : 0;
+        if (size > capacity || !used.compareAndSet(size - 1, size)) {
+            // Can't write to the shared tables, copy them
+            capacity = TaskSeries.getCapacity(size);
+            for (int k = 0; k < mMin.length && k < levels; k++) {
+                min[k] = copyOf(mMin[k], capacity, size - 1);
+                max[k] = copyOf(mMax[k], capacity, size - 1);
+            }
+            used = new AtomicInteger(size);
+        }
+
+        // New entries are the ones ending at the new report
+        for (int k = 0; k < levels; k++) {
+            if (min[k] == null) {
+                min[k] = new float[capacity];
+                max[k] = new float[capacity];
+            }
+            int i = size - (1 << k);
+            if (k == 0) {
+                min[0][i] = max[0][i] = value;
+            } else {
+                int half = 1 << (k - 1);
+                min[k][i] = Math.min(min[k - 1][i], min[k - 1][i + half]);
+                max[k][i] = Math.max(max[k - 1][i], max[k - 1][i + half]);
+            }
+        }
+
+        return new SeriesIndex(series, dailyValues, mStartValue, min, max, used);
+    }
+
+    /**
+     * Returns index of the first reports of the series, e.g. after the last
+     * report is removed. Tables are shared with this index.
+     *
+     * @param size Number of reports to keep
+     * @return
+     */
+    public SeriesIndex truncate(int size) {
+        if (size == mSeries.size()) {
+            return this;
+        }
+        TaskSeries series = mSeries.truncate(size);
+        if (size == 0) {
+            return build(series, mStartValue);
+        }
+        DailyValues dailyValues = mDailyValues.truncate(series);
+        return new SeriesIndex(series, dailyValues, mStartValue, mMin, mMax, mUsed);
+    }
+
+    /**
+     * Calculate statistics of the given date range
+     *
+     * @param fromDay Epoch day, inclusive
+     * @param toDay Epoch day, inclusive
+     * @param stats Receives the result
+     */
+    public void query(int fromDay, int toDay, RangeStats stats) {
+
+        int before = mSeries.floorIndex(fromDay - 1);
+        int first = mSeries.floorIndex(fromDay);
+        int last = mSeries.floorIndex(toDay);
+
+        stats.startValue = mDailyValues.getValue(fromDay - 1);
+        stats.endValue = mDailyValues.getValue(toDay);
+        stats.reportCount = last - before;
+
+        // Values on the days of the range are the value on the first day
+        // (which may come from an earlier report) and values of the reports
+        // made later in the range
+        if (last < 0) {
+            stats.minValue = stats.maxValue = mStartValue;
+            return;
+        }
+
+        int from = Math.max(first, 0);
+        int k = log2(last - from + 1);
+        int to = last - (1 << k) + 1;
+        stats.minValue = Math.min(mMin[k][from], mMin[k][to]);
+        stats.maxValue = Math.max(mMax[k][from], mMax[k][to]);
+
+        if (first < 0) {
+            stats.minValue = Math.min(stats.minValue, mStartValue);
+            stats.maxValue = Math.max(stats.maxValue, mStartValue);
+        }
+    }
+
+    private static float[] copyOf(float[] array, int length, int used) {
+        float[] copy = new float[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(used, array.length));
+        return copy;
+    }
+
+    private static int log2(int n) {
+        return 31 - Integer.numberOfLeadingZeros(n);
+    }
+}
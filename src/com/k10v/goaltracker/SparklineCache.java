@@ -0,0 +1,112 @@
+package com.k10v.goaltracker;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * Least recently used sparklines of tasks, limited by the memory used by
+ * their bitmaps. Every task has a data version which changes when its
+ * reports change; sparklines rendered for an older version are not cached.
+ *
+ * Evicted bitmaps are not recycled because they may still be shown. Instances
+ * are thread-safe.
+ */
+public class SparklineCache {
+
+    private static class Entry {
+        final Bitmap bitmap;
+        final int size;
+
+        Entry(Bitmap bitmap) {
+            this.bitmap = bitmap;
+            this.size = bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    }
+
+    private final int mMaxSize;
+    private int mSize = 0;
+
+    // Access-ordered, so the least recently used entry comes first
+    private final LinkedHashMap<Long, Entry> mEntries =
+            new LinkedHashMap<Long, Entry>(32, 0.75f, true);
+
+    private final HashMap<Long, Integer> mVersions = new HashMap<Long, Integer>();
+
+    /**
+     * @param maxSize Max number of bytes used by cached bitmaps
+     */
+    public SparklineCache(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the current data version of the task
+     *
+     * @param taskId
+     * @return
+     */
+    public synchronized int getVersion(long taskId) {
+        Integer version = mVersions.get(taskId);
+        return (version == null) ? 0 : version;
+    }
+
+    /**
+     * @param taskId
+     * @return sparkline of the current version of the task's data, null if
+     *         it's not cached
+     */
+    public synchronized Bitmap get(long taskId) {
+        Entry entry = mEntries.get(taskId);
+        return (entry != null) ? entry.bitmap : null;
+    }
+
+    /**
+     * Store the sparkline unless the task's data has changed since the given
+     * version
+     *
+     * @param taskId
+     * @param version Data version the sparkline was rendered for
+     * @param bitmap
+     */
+    public synchronized void put(long taskId, int version, Bitmap bitmap) {
+
+        if (version != getVersion(taskId)) {
+            return;
+        }
+
+        Entry entry = new Entry(bitmap);
+        Entry oldEntry = mEntries.put(taskId, entry);
+        mSize += entry.size;
+        if (oldEntry != null) {
+            mSize -= oldEntry.size;
+        }
+
+        Iterator<Map.Entry<Long, Entry>> i = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && i.hasNext()) {
+            Entry eldest = i.next().getValue();
+            if (eldest == entry) {
+                break;
+            }
+            mSize -= eldest.size;
+            i.remove();
+        }
+    }
+
+    /**
+     * Forget the task's sparkline and start a new data version, e.g. after
+     * its reports have changed
+     *
+     * @param taskId
+     */
+    public synchronized void invalidate(long taskId) {
+        mVersions.put(taskId, getVersion(taskId) + 1);
+        Entry entry = mEntries.remove(taskId);
+        if (entry != null) {
+            mSize -= entry.size;
+        }
+    }
+}
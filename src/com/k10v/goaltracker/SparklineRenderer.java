@@ -0,0 +1,293 @@
+package com.k10v.goaltracker;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * Shows sparklines (the progress line of the graph without anything else) of
+ * tasks in image views. Sparklines are rendered by GraphDrawer in a
+ * background thread and kept in a SparklineCache.
+ *
+ * Only the latest request of every view is kept, so scrolling through a long
+ * list doesn't queue more requests than there are visible rows; the most
+ * recent request is rendered first. Methods must be called in the main
+ * thread.
+ */
+public class SparklineRenderer {
+
+    private static final String TAG = "SparklineRenderer";
+
+    /**
+     * Part of the max heap size used by cached sparklines
+     */
+    private static final int CACHE_HEAP_FRACTION = 16;
+
+    /**
+     * Sparkline waiting to be rendered
+     */
+    private static class Request {
+        final ImageView view;
+        final long taskId;
+        final int version;
+
+        Request(ImageView view, long taskId, int version) {
+            this.view = view;
+            this.taskId = taskId;
+            this.version = version;
+        }
+    }
+
+    private final Context mContext;
+    private final int mWidth;
+    private final int mHeight;
+    private final SparklineCache mCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Requests by view, in the order they were made; guarded by itself
+    private final LinkedHashMap<ImageView, Request> mRequests =
+            new LinkedHashMap<ImageView, Request>();
+
+    private Thread mThread;
+    private boolean mIsStopped = false;
+
+    // Used only in the rendering thread
+    private GraphDrawer mDrawer;
+
+    /**
+     * @param context
+     * @param width Width of sparklines in pixels
+     * @param height Height of sparklines in pixels
+     */
+    public SparklineRenderer(Context context, int width, int height) {
+        mContext = context.getApplicationContext();
+        mWidth = width;
+        mHeight = height;
+        mCache = new SparklineCache((int) (Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION));
+    }
+
+    /**
+     * Start the rendering thread
+     */
+    public void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processRequests();
+            }
+        }, "GoalTrackerSparklines");
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stop the rendering thread, requests which are not rendered yet are
+     * dropped
+     */
+    public void stop() {
+        synchronized (mRequests) {
+            mIsStopped = true;
+            mRequests.clear();
+            mRequests.notify();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Show the sparkline of the task in the view: at once if it's cached,
+     * otherwise after it's rendered
+     *
+     * @param view
+     * @param taskId
+     */
+    public void bind(ImageView view, long taskId) {
+        view.setTag(taskId);
+        Bitmap bitmap = mCache.get(taskId);
+        view.setImageBitmap(bitmap);
+        synchronized (mRequests) {
+            mRequests.remove(view);
+            if (bitmap == null) {
+                mRequests.put(view, new Request(view, taskId, mCache.getVersion(taskId)));
+                mRequests.notify();
+            }
+        }
+    }
+
+    /**
+     * Clear the view (e.g. if the task has no reports)
+     *
+     * @param view
+     */
+    public void unbind(ImageView view) {
+        view.setTag(null);
+        view.setImageBitmap(null);
+        synchronized (mRequests) {
+            mRequests.remove(view);
+        }
+    }
+
+    /**
+     * Forget the sparkline of the task, it will be rendered again when it's
+     * shown next time
+     *
+     * @param taskId
+     */
+    public void invalidate(long taskId) {
+        mCache.invalidate(taskId);
+    }
+
+    private void processRequests() {
+        while (true) {
+            Request request;
+            synchronized (mRequests) {
+                while (!mIsStopped && mRequests.isEmpty()) {
+                    try {
+                        mRequests.wait();
+                    } catch (InterruptedException e) {
+                        // Check the requests again
+                    }
+                }
+                if (mIsStopped) {
+                    return;
+                }
+                request = takeLatestRequest();
+            }
+            process(request);
+        }
+    }
+
+    /**
+     * Must be called with mRequests locked
+     *
+     * @return
+     */
+    private Request takeLatestRequest() {
+        Iterator<Map.Entry<ImageView, Request>> i = mRequests.entrySet().iterator();
+        Request request = null;
+        while (i.hasNext()) {
+            request = i.next().getValue();
+        }
+        i.remove();
+        return request;
+    }
+
+    private void process(final Request request) {
+
+        // Other view may have asked for the same sparkline
+        Bitmap bitmap = mCache.get(request.taskId);
+        if (bitmap == null) {
+            try {
+                bitmap = render(request.taskId);
+            } catch (SQLException e) {
+                Log.e(TAG, "Can't load reports of task " + request.taskId, e);
+                return;
+            }
+            if (bitmap == null) {
+                return;
+            }
+            mCache.put(request.taskId, request.version, bitmap);
+        }
+
+        final Bitmap result = bitmap;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // The view may show other task by now
+                Object tag = request.view.getTag();
+                if (tag != null && tag.equals(request.taskId) &&
+                        request.version == mCache.getVersion(request.taskId)) {
+                    request.view.setImageBitmap(result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Load reports of the task and draw its sparkline. Long histories are
+     * read from weekly or monthly rollups, so that there are not many more
+     * points than pixels.
+     *
+     * @param taskId
+     * @return null if the task has no reports
+     */
+    private Bitmap render(long taskId) {
+
+        TaskSeries series;
+        GoalTrackerDbAdapter dbHelper = GoalTrackerDbAdapter.acquire(mContext);
+        try {
+            int firstDate;
+            int lastDate;
+            Cursor taskCursor = dbHelper.getTaskPeer().fetchTask(taskId);
+            try {
+                if (taskCursor.getCount() == 0 ||
+                        taskCursor.getInt(taskCursor.getColumnIndexOrThrow(TaskStatsPeer.KEY_REPORT_COUNT)) == 0) {
+                    return null;
+                }
+                firstDate = taskCursor.getInt(taskCursor.getColumnIndexOrThrow(TaskStatsPeer.KEY_FIRST_DATE));
+                lastDate = taskCursor.getInt(taskCursor.getColumnIndexOrThrow(TaskStatsPeer.KEY_LAST_DATE));
+            } finally {
+                taskCursor.close();
+            }
+
+            Cursor rollupsCursor = dbHelper.getReportRollupPeer().
+                    fetchRollups(taskId, firstDate, lastDate, mWidth);
+            try {
+                series = TaskSeries.readRollups(rollupsCursor);
+            } finally {
+                rollupsCursor.close();
+            }
+        } finally {
+            dbHelper.release();
+        }
+
+        int size = series.size();
+        if (size == 0) {
+            return null;
+        }
+
+        // The line starts at the first report, so the sparkline depends only
+        // on the reports
+        float startValue = series.getValue(0);
+        SeriesIndex index = SeriesIndex.build(series, startValue);
+        int minDay = series.getDay(0);
+        int maxDay = series.getDay(size - 1);
+        SeriesIndex.RangeStats stats = new SeriesIndex.RangeStats();
+        index.query(minDay, maxDay, stats);
+        float minValue = stats.minValue;
+        float maxValue = stats.maxValue;
+        if (minValue == maxValue) {
+            minValue -= 1;
+            maxValue += 1;
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+
+        if (mDrawer == null) {
+            mDrawer = new GraphDrawer(mContext);
+        }
+
+        // Leave room for the width of the line
+        mDrawer.setCanvas(new Canvas(bitmap));
+        mDrawer.setPlotRectangle(1, 1, mWidth - 2, mHeight - 2);
+        mDrawer.setSeries(series, index);
+        mDrawer.setStartValue(startValue);
+        mDrawer.setValueRange(minValue, maxValue);
+        mDrawer.setDateRange(minDay, maxDay);
+        mDrawer.drawSparkline();
+
+        return bitmap;
+    }
+}
@@ -1,7 +1,11 @@
 package com.k10v.goaltracker;
 
+import java.util.concurrent.Callable;
+
 import android.app.Activity;
+import android.content.Context;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
@@ -13,12 +17,14 @@ import android.widget.Toast;
 public class TaskEdit extends Activity {
 
     private GoalTrackerDbAdapter mDbHelper;
-    private Cursor mTaskCursor;
+    private TaskLoader mTaskLoader;
 
     private Long mRowId;
+    private String mOldTitle;
     private EditText mTitleText;
     private EditText mStartValueText;
     private EditText mTargetValueText;
+    private Button mSaveButton;
     private boolean mFormChanged = false;
 
     @Override
@@ -27,8 +33,7 @@ public class TaskEdit extends Activity {
         super.onCreate(savedInstanceState);
 
         // Prepare DB adapter
-        mDbHelper = new GoalTrackerDbAdapter(this);
-        mDbHelper.open();
+        mDbHelper = GoalTrackerDbAdapter.acquire(this);
 
         // Setup the View
         setContentView(R.layout.task_edit);
@@ -37,6 +42,7 @@ public class TaskEdit extends Activity {
         mTitleText = (EditText) findViewById(R.id.task_title);
         mStartValueText = (EditText) findViewById(R.id.task_start_value);
         mTargetValueText = (EditText) findViewById(R.id.task_target_value);
+        mSaveButton = (Button) findViewById(R.id.button_save_task);
 
         // Retrieve task ID: first check if it's stored in saved state, if not
         // then check Intent's extras. If ID is empty, we will create a new task
@@ -55,7 +61,8 @@ public class TaskEdit extends Activity {
             setTitle(R.string.title_edit_task);
         }
 
-        populateFields();
+        // Form values restored from the saved state are kept
+        loadTask(savedInstanceState == null);
 
         setupListeners();
     }
@@ -63,7 +70,11 @@ public class TaskEdit extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mDbHelper.close();
+        if (mTaskLoader != null) {
+            mTaskLoader.cancel(false);
+            mTaskLoader = null;
+        }
+        mDbHelper.release();
     }
 
     /**
@@ -79,20 +90,84 @@ public class TaskEdit extends Activity {
     }
 
     /**
-     * Fill form with data from the database
+     * Start loading the edited task; the form is disabled until it's loaded
+     *
+     * @param fillForm Whether the form should be filled with the loaded data
      */
-    private void populateFields() {
+    private void loadTask(boolean fillForm) {
 
         if (mRowId == null) {
             return;
         }
 
-        Cursor c = mDbHelper.getTaskPeer().fetchTask(mRowId);
-        startManagingCursor(c);
-        mTitleText.setText(c.getString(c.getColumnIndexOrThrow(TaskPeer.KEY_TITLE)));
-        mStartValueText.setText(c.getString(c.getColumnIndexOrThrow(TaskPeer.KEY_START_VALUE)));
-        mTargetValueText.setText(c.getString(c.getColumnIndexOrThrow(TaskPeer.KEY_TARGET_VALUE)));
-        mTaskCursor = c;
+        setFormEnabled(false);
+        mTaskLoader = new TaskLoader(fillForm);
+        mTaskLoader.execute(mRowId);
+    }
+
+    private void setFormEnabled(boolean enabled) {
+        mTitleText.setEnabled(enabled);
+        mStartValueText.setEnabled(enabled);
+        mTargetValueText.setEnabled(enabled);
+        mSaveButton.setEnabled(enabled);
+    }
+
+    /**
+     * Loads data of an existing task
+     */
+    private class TaskLoader extends AsyncTask<Long, Void, Boolean> {
+
+        private final boolean mFillForm;
+        private String mTitle;
+        private String mStartValue;
+        private String mTargetValue;
+
+        public TaskLoader(boolean fillForm) {
+            mFillForm = fillForm;
+        }
+
+        @Override
+        protected Boolean doInBackground(Long... params) {
+            GoalTrackerDbAdapter dbHelper = GoalTrackerDbAdapter.acquire(TaskEdit.this);
+            try {
+                Cursor c = dbHelper.getTaskPeer().fetchTask(params[0]);
+                try {
+                    if (c.getCount() == 0) {
+                        return false;
+                    }
+                    mTitle = c.getString(c.getColumnIndexOrThrow(TaskPeer.KEY_TITLE));
+                    mStartValue = c.getString(c.getColumnIndexOrThrow(TaskPeer.KEY_START_VALUE));
+                    mTargetValue = c.getString(c.getColumnIndexOrThrow(TaskPeer.KEY_TARGET_VALUE));
+                } finally {
+                    c.close();
+                }
+                return true;
+            } finally {
+                dbHelper.release();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean isLoaded) {
+            if (mTaskLoader != this || isFinishing()) {
+                return;
+            }
+            mTaskLoader = null;
+            if (!isLoaded) {
+                // Task has been deleted
+                finish();
+                return;
+            }
+            mOldTitle = mTitle;
+            if (mFillForm) {
+                // Fill form with data from the database
+                mTitleText.setText(mTitle);
+                mStartValueText.setText(mStartValue);
+                mTargetValueText.setText(mTargetValue);
+                mFormChanged = false;
+            }
+            setFormEnabled(true);
+        }
     }
 
     /**
@@ -101,8 +176,7 @@ public class TaskEdit extends Activity {
     private void setupListeners() {
 
         // "Save" button
-        Button confirmButton = (Button) findViewById(R.id.button_save_task);
-        confirmButton.setOnClickListener(new View.OnClickListener() {
+        mSaveButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 setResult(RESULT_OK);
@@ -170,7 +244,7 @@ public class TaskEdit extends Activity {
                 title = getString(R.string.task_default_title);
             } else {
                 // If the new title is empty, use the old one
-                title = mTaskCursor.getString(mTaskCursor.getColumnIndexOrThrow(TaskPeer.KEY_TITLE));
+                title = mOldTitle;
             }
         }
 
@@ -191,17 +265,44 @@ public class TaskEdit extends Activity {
         }
 
         // Create/update task
-        if (isNewTask) {
-            mRowId = mDbHelper.getTaskPeer().createTask(title, startValue, targetValue);
-        } else {
-            mDbHelper.getTaskPeer().updateTask(mRowId, title, startValue, targetValue);
-        }
+        final GoalTrackerDbAdapter dbHelper = mDbHelper;
+        final boolean isNew = isNewTask;
+        final long rowId = isNewTask ? 0 : mRowId;
+        final String taskTitle = title;
+        final double taskStartValue = startValue;
+        final Double taskTargetValue = targetValue;
+        final Context context = getApplicationContext();
+
+        mDbHelper.getWriteQueue().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                TaskPeer taskPeer = dbHelper.getTaskPeer();
+                if (isNew) {
+                    return taskPeer.createTask(taskTitle, taskStartValue, taskTargetValue) != -1;
+                } else {
+                    return taskPeer.updateTask(rowId, taskTitle, taskStartValue, taskTargetValue);
+                }
+            }
+        }, new DbWriteQueue.Callback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean isSaved) {
+                int toastMessageId;
+                if (!isSaved) {
+                    toastMessageId = R.string.message_save_failed;
+                } else if (isNew) {
+                    toastMessageId = R.string.message_task_created;
+                } else {
+                    toastMessageId = R.string.message_task_updated;
+                }
+                Toast toast = Toast.makeText(context, toastMessageId, Toast.LENGTH_SHORT);
+                toast.show();
+            }
 
-        // Show toast notification
-        int toastMessageId = isNewTask ?
-                R.string.message_task_created :
-                R.string.message_task_updated;
-        Toast toast = Toast.makeText(getApplicationContext(), toastMessageId, Toast.LENGTH_SHORT);
-        toast.show();
+            @Override
+            public void onFailure(Exception e) {
+                Toast toast = Toast.makeText(context, R.string.message_save_failed, Toast.LENGTH_SHORT);
+                toast.show();
+            }
+        });
     }
 }
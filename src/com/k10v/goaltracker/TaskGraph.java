@@ -1,13 +1,17 @@
 package com.k10v.goaltracker;
 
+import java.util.List;
+
 import android.app.Activity;
 import android.app.Dialog;
 import android.content.Intent;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.Window;
 
 public class TaskGraph extends Activity {
 
@@ -25,21 +29,32 @@ public class TaskGraph extends Activity {
     public static final int MENU_ID_DELETE_TASK = Menu.FIRST + 3;
 
     private GoalTrackerDbAdapter mDbHelper;
-    private Cursor mTaskCursor;
-    private Cursor mReportsCursor;
     private long mTaskId;
     private Panel mGraph;
+    private GraphData mGraphData;
+    private GraphLoader mGraphLoader;
+
+    private final ReportPeer.ChangeListener mReportChangeListener =
+            new ReportPeer.ChangeListener() {
+                @Override
+                public void onReportsChanged(List<ReportPeer.Change> changes) {
+                    applyReportChanges(changes);
+                }
+            };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
 
         super.onCreate(savedInstanceState);
 
+        // Progress indicator is shown while the graph is loading
+        requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
+
         setContentView(R.layout.task_graph);
 
         // Prepare DB adapter
-        mDbHelper = new GoalTrackerDbAdapter(this);
-        mDbHelper.open();
+        mDbHelper = GoalTrackerDbAdapter.acquire(this);
+        mDbHelper.addReportChangeListener(mReportChangeListener);
 
         // Retrieve task ID: first check if it's stored in saved state, if not
         // then check Intent's extras. If ID is empty, it is an error.
@@ -55,13 +70,9 @@ public class TaskGraph extends Activity {
             // Error
             Log.e(TAG, "Task ID is empty");
             finish();
+            return;
         }
 
-        // Retrieve task details from the database and use task title as an
-        // activity title
-        mTaskCursor = mDbHelper.getTaskPeer().fetchTask(mTaskId);
-        setTitle(mTaskCursor.getString(mTaskCursor.getColumnIndex(TaskPeer.KEY_TITLE)));
-
         // Find graph surface and start drawing the graph
         mGraph = (Panel) findViewById(R.id.graph_surface);
         drawGraph();
@@ -70,7 +81,12 @@ public class TaskGraph extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mDbHelper.close();
+        if (mGraphLoader != null) {
+            mGraphLoader.cancel(false);
+            mGraphLoader = null;
+        }
+        mDbHelper.removeReportChangeListener(mReportChangeListener);
+        mDbHelper.release();
     }
 
     /**
@@ -130,11 +146,24 @@ public class TaskGraph extends Activity {
     }
 
     /**
-     * Process result from other activity (create report etc.)
+     * Process result from other activity (create report etc.). Changes of
+     * reports are applied to the graph as they are committed (see
+     * applyReportChanges()), only changes of the task itself need reloading.
      */
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
-        drawGraph();
+        if (requestCode != ACTIVITY_EDIT_TASK) {
+            return;
+        }
+        // Reload the graph after the changes made by the other activity are saved
+        mDbHelper.getWriteQueue().runAfterWrites(new Runnable() {
+            @Override
+            public void run() {
+                if (!isFinishing()) {
+                    drawGraph();
+                }
+            }
+        });
     }
 
     /**
@@ -196,17 +225,120 @@ public class TaskGraph extends Activity {
     }
 
     /**
-     * Draw the graph.
+     * Draw the graph: load the task and its reports in background, the graph
+     * is updated when they are loaded. The task title is used as an activity
+     * title.
      */
     private void drawGraph() {
+        if (mGraphLoader != null) {
+            mGraphLoader.cancel(false);
+        }
+        setProgressBarIndeterminateVisibility(true);
+        mGraphLoader = new GraphLoader();
+        mGraphLoader.execute(mTaskId);
+    }
+
+    /**
+     * Update the graph with the committed changes of reports without loading
+     * all the reports again
+     *
+     * @param changes
+     */
+    private void applyReportChanges(List<ReportPeer.Change> changes) {
+
+        GraphData data = mGraphData;
+
+        for (ReportPeer.Change change : changes) {
+
+            if (change.taskId != mTaskId) {
+                continue;
+            }
+
+            // Data being loaded may or may not include the change, so load
+            // it again
+            if (data == null || mGraphLoader != null || change.type == ReportPeer.Change.Type.RELOAD) {
+                drawGraph();
+                return;
+            }
+
+            switch (change.type) {
 
-        mTaskCursor = mDbHelper.getTaskPeer().fetchTask(mTaskId);
-        startManagingCursor(mTaskCursor);
+            case ADDED:
+                data = data.withReport(change.date, (float) change.value);
+                break;
 
-        mReportsCursor = mDbHelper.getReportPeer().
-                fetchReportsByTask(mTaskId);
-        startManagingCursor(mReportsCursor);
+            case UPDATED:
+                if (change.oldDate != change.date) {
+                    data = data.withoutReport(change.oldDate);
+                }
+                data = data.withReport(change.date, (float) change.value);
+                break;
+
+            case DELETED:
+                data = data.withoutReport(change.oldDate);
+                break;
+
+            }
+        }
+
+        if (data != mGraphData) {
+            mGraphData = data;
+            mGraph.setData(data);
+        }
+    }
+
+    /**
+     * Reads the task and its reports and prepares them for the graph
+     */
+    private class GraphLoader extends AsyncTask<Long, Void, GraphData> {
+
+        private String mTitle;
 
-        mGraph.setData(mTaskCursor, mReportsCursor);
+        @Override
+        protected GraphData doInBackground(Long... params) {
+
+            GoalTrackerDbAdapter dbHelper = GoalTrackerDbAdapter.acquire(TaskGraph.this);
+            Cursor taskCursor = null;
+            Cursor reportsCursor = null;
+            try {
+                taskCursor = dbHelper.getTaskPeer().fetchTask(params[0]);
+                if (taskCursor.getCount() == 0 || isCancelled()) {
+                    return null;
+                }
+                mTitle = taskCursor.getString(taskCursor.getColumnIndexOrThrow(TaskPeer.KEY_TITLE));
+
+                reportsCursor = dbHelper.getReportPeer().fetchReportsByTask(params[0]);
+                if (isCancelled()) {
+                    return null;
+                }
+                return GraphData.read(taskCursor, reportsCursor);
+            } finally {
+                if (taskCursor != null) {
+                    taskCursor.close();
+                }
+                if (reportsCursor != null) {
+                    reportsCursor.close();
+                }
+                dbHelper.release();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(GraphData data) {
+            // Before API 11 a loader cancelled after loading still gets here
+            if (mGraphLoader != this || isFinishing()) {
+                return;
+            }
+            setProgressBarIndeterminateVisibility(false);
+            mGraphLoader = null;
+            if (data == null) {
+                // Task doesn't exist (anymore)
+                finish();
+                return;
+            }
+            setTitle(mTitle);
+            mGraphData = data;
+            mGraph.setData(data);
+        }
     }
 }
@@ -0,0 +1,114 @@
+package com.k10v.goaltracker;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.ResourceCursorAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows tasks with a summary of their progress (last value, date of the last
+ * report and percentage of the target reached) and a sparkline. Expects a
+ * cursor returned by TaskPeer.fetchAllTasksWithStats(); column indices are
+ * looked up once per cursor, not for every row.
+ */
+public class TaskListAdapter extends ResourceCursorAdapter {
+
+    /**
+     * Views of a row, kept in the row's tag
+     */
+    private static class RowViews {
+        TextView title;
+        TextView value;
+        TextView date;
+        TextView progress;
+        ImageView sparkline;
+    }
+
+    private final SparklineRenderer mSparklineRenderer;
+
+    private int mIdIndex;
+    private int mTitleIndex;
+    private int mStartValueIndex;
+    private int mTargetValueIndex;
+    private int mReportCountIndex;
+    private int mLastValueIndex;
+    private int mLastDateIndex;
+
+    /**
+     * @param context
+     * @param c
+     * @param sparklineRenderer Renders sparklines of the tasks in background
+     */
+    public TaskListAdapter(Context context, Cursor c, SparklineRenderer sparklineRenderer) {
+        super(context, R.layout.task_row, c);
+        mSparklineRenderer = sparklineRenderer;
+        findColumns(c);
+    }
+
+    @Override
+    public void changeCursor(Cursor cursor) {
+        findColumns(cursor);
+        super.changeCursor(cursor);
+    }
+
+    private void findColumns(Cursor c) {
+        if (c == null) {
+            return;
+        }
+        mIdIndex = c.getColumnIndexOrThrow(TaskPeer.KEY_ID);
+        mTitleIndex = c.getColumnIndexOrThrow(TaskPeer.KEY_TITLE);
+        mStartValueIndex = c.getColumnIndexOrThrow(TaskPeer.KEY_START_VALUE);
+        mTargetValueIndex = c.getColumnIndexOrThrow(TaskPeer.KEY_TARGET_VALUE);
+        mReportCountIndex = c.getColumnIndexOrThrow(TaskStatsPeer.KEY_REPORT_COUNT);
+        mLastValueIndex = c.getColumnIndexOrThrow(TaskStatsPeer.KEY_LAST_VALUE);
+        mLastDateIndex = c.getColumnIndexOrThrow(TaskStatsPeer.KEY_LAST_DATE);
+    }
+
+    @Override
+    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+        View view = super.newView(context, cursor, parent);
+        RowViews views = new RowViews();
+        views.title = (TextView) view.findViewById(R.id.task_row_text);
+        views.value = (TextView) view.findViewById(R.id.task_row_value);
+        views.date = (TextView) view.findViewById(R.id.task_row_date);
+        views.progress = (TextView) view.findViewById(R.id.task_row_progress);
+        views.sparkline = (ImageView) view.findViewById(R.id.task_row_sparkline);
+        view.setTag(views);
+        return view;
+    }
+
+    @Override
+    public void bindView(View view, Context context, Cursor cursor) {
+
+        RowViews views = (RowViews) view.getTag();
+        views.title.setText(cursor.getString(mTitleIndex));
+
+        if (cursor.getInt(mReportCountIndex) == 0) {
+            views.value.setText("");
+            views.date.setText(R.string.message_no_reports);
+            views.progress.setText("");
+            mSparklineRenderer.unbind(views.sparkline);
+            return;
+        }
+
+        mSparklineRenderer.bind(views.sparkline, cursor.getLong(mIdIndex));
+
+        float lastValue = cursor.getFloat(mLastValueIndex);
+        views.value.setText(Util.formatNumber(lastValue));
+        views.date.setText(Util.formatDate(cursor.getInt(mLastDateIndex), context));
+
+        // Percentage of the way from the start value to the target, same as
+        // on the graph
+        float startValue = cursor.getFloat(mStartValueIndex);
+        if (cursor.isNull(mTargetValueIndex) || cursor.getFloat(mTargetValueIndex) == startValue) {
+            views.progress.setText("");
+        } else {
+            float targetValue = cursor.getFloat(mTargetValueIndex);
+            float percentage = Math.round(1000 * (lastValue - startValue) / (targetValue - startValue)) / 10f;
+            views.progress.setText(Util.formatNumber(percentage) + "%");
+        }
+    }
+}
@@ -1,9 +1,9 @@
 package com.k10v.goaltracker;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 public class TaskPeer extends BasePeer {
 
@@ -13,6 +13,44 @@ public class TaskPeer extends BasePeer {
     public static final String KEY_TITLE = "title";
     public static final String KEY_START_VALUE = "start_value";
     public static final String KEY_TARGET_VALUE = "target_value";
+    public static final String KEY_DELETED = "deleted";
+
+    private static final String SQL_INSERT = "INSERT INTO " + TABLE + " ("
+            + KEY_TITLE + ", " + KEY_START_VALUE + ", " + KEY_TARGET_VALUE
+            + ") VALUES (?, ?, ?)";
+
+    private static final String SQL_UPDATE = "UPDATE " + TABLE + " SET "
+            + KEY_TITLE + " = ?, " + KEY_START_VALUE + " = ?, "
+            + KEY_TARGET_VALUE + " = ? WHERE " + KEY_ID + " = ?";
+
+    private static final String SQL_DELETE = "DELETE FROM " + TABLE
+            + " WHERE " + KEY_ID + " = ?";
+
+    private static final String SQL_MARK_DELETED = "UPDATE " + TABLE + " SET "
+            + KEY_DELETED + " = 1 WHERE " + KEY_ID + " = ?";
+
+    private static final String SQL_FIRST_DELETED = "SELECT IFNULL(MIN("
+            + KEY_ID + "), 0) FROM " + TABLE + " WHERE " + KEY_DELETED + " = 1";
+
+    private static final String SQL_DELETE_REPORTS_CHUNK = "DELETE FROM "
+            + ReportPeer.TABLE + " WHERE " + ReportPeer.KEY_ID + " IN (SELECT "
+            + ReportPeer.KEY_ID + " FROM " + ReportPeer.TABLE + " WHERE "
+            + ReportPeer.KEY_TASK_ID + " = ? LIMIT ?)";
+
+    private static final String SQL_SELECT_WITH_STATS = "SELECT "
+            + "t." + KEY_ID + " AS " + KEY_ID + ", "
+            + "t." + KEY_TITLE + " AS " + KEY_TITLE + ", "
+            + "t." + KEY_START_VALUE + " AS " + KEY_START_VALUE + ", "
+            + "t." + KEY_TARGET_VALUE + " AS " + KEY_TARGET_VALUE + ", "
+            + "IFNULL(s." + TaskStatsPeer.KEY_REPORT_COUNT + ", 0) AS "
+            + TaskStatsPeer.KEY_REPORT_COUNT + ", "
+            + "s." + TaskStatsPeer.KEY_MIN_VALUE + " AS " + TaskStatsPeer.KEY_MIN_VALUE + ", "
+            + "s." + TaskStatsPeer.KEY_MAX_VALUE + " AS " + TaskStatsPeer.KEY_MAX_VALUE + ", "
+            + "s." + TaskStatsPeer.KEY_LAST_VALUE + " AS " + TaskStatsPeer.KEY_LAST_VALUE + ", "
+            + "s." + TaskStatsPeer.KEY_FIRST_DATE + " AS " + TaskStatsPeer.KEY_FIRST_DATE + ", "
+            + "s." + TaskStatsPeer.KEY_LAST_DATE + " AS " + TaskStatsPeer.KEY_LAST_DATE + " "
+            + "FROM " + TABLE + " t LEFT JOIN " + TaskStatsPeer.TABLE + " s ON s."
+            + TaskStatsPeer.KEY_TASK_ID + " = t." + KEY_ID;
 
     public TaskPeer(GoalTrackerDbAdapter dbAdapter, SQLiteDatabase mDb) {
         super(dbAdapter, mDb);
@@ -28,11 +66,9 @@ public class TaskPeer extends BasePeer {
      * @return rowId or -1 if failed
      */
     public long createTask(String title, double startValue, Double targetValue) {
-
-        ContentValues values = createContentValues(title, startValue,
-                targetValue);
-
-        return mDb.insert(TABLE, null, values);
+        SQLiteStatement statement = getStatement(SQL_INSERT);
+        bindValues(statement, title, startValue, targetValue);
+        return executeInsert(statement);
     }
 
     /**
@@ -46,64 +82,114 @@ public class TaskPeer extends BasePeer {
      */
     public boolean updateTask(long rowId, String title, double startValue,
             Double targetValue) {
-
-        ContentValues values = createContentValues(title, startValue,
-                targetValue);
-
-        return mDb.update(TABLE, values, KEY_ID + "=" + rowId, null) > 0;
+        SQLiteStatement statement = getStatement(SQL_UPDATE);
+        bindValues(statement, title, startValue, targetValue);
+        statement.bindLong(4, rowId);
+        return executeUpdateDelete(statement) > 0;
     }
 
     /**
-     * Creates ContentValues object and fills it with the given values.
+     * Binds the given values to the first three arguments of INSERT/UPDATE
+     * statement.
      *
+     * @param statement
      * @param title
      * @param startValue
      * @param targetValue
-     * @return ContentValues object filled with the given values
      */
-    private ContentValues createContentValues(String title, double startValue,
-            Double targetValue) {
-
-        ContentValues values = new ContentValues();
-
-        values.put(KEY_TITLE, title);
-        values.put(KEY_START_VALUE, startValue);
-        values.put(KEY_TARGET_VALUE, targetValue);
-
-        return values;
+    private void bindValues(SQLiteStatement statement, String title,
+            double startValue, Double targetValue) {
+        statement.bindString(1, title);
+        statement.bindDouble(2, startValue);
+        bindDouble(statement, 3, targetValue);
     }
 
     /**
-     * Delete the task with the given rowId
+     * Delete the task with the given rowId; its reports, statistics and
+     * rollups are deleted by a trigger in the same transaction. For tasks
+     * with a lot of reports consider GoalTrackerDbAdapter.deleteTaskInBackground().
      *
      * @param rowId id of task to delete
      * @return true if deleted, false otherwise
      */
     public boolean deleteTask(long rowId) {
-        dbAdapter.getReportPeer().deleteReportsByTask(rowId);
-        return mDb.delete(TABLE, KEY_ID + "=" + rowId, null) > 0;
+        SQLiteStatement statement = getStatement(SQL_DELETE);
+        statement.bindLong(1, rowId);
+        return executeUpdateDelete(statement) > 0;
+    }
+
+    /**
+     * Mark the task as deleted, it won't be listed anymore; its data should
+     * be deleted later with purgeDeletedTasks()
+     *
+     * @param rowId
+     * @return true if marked, false otherwise
+     */
+    public boolean markTaskDeleted(long rowId) {
+        SQLiteStatement statement = getStatement(SQL_MARK_DELETED);
+        statement.bindLong(1, rowId);
+        return executeUpdateDelete(statement) > 0;
     }
 
     /**
-     * Return a Cursor over the list of all tasks in the database
+     * Delete a chunk of reports of a task marked as deleted; when all its
+     * reports are deleted, the task itself is deleted
+     *
+     * @param chunkSize Max number of reports to delete
+     * @return false if there is nothing left to delete
+     */
+    public boolean purgeDeletedTasks(int chunkSize) {
+        long taskId = getStatement(SQL_FIRST_DELETED).simpleQueryForLong();
+        if (taskId == 0) {
+            return false;
+        }
+        SQLiteStatement statement = getStatement(SQL_DELETE_REPORTS_CHUNK);
+        statement.bindLong(1, taskId);
+        statement.bindLong(2, chunkSize);
+        if (executeUpdateDelete(statement) < chunkSize) {
+            deleteTask(taskId);
+        }
+        return true;
+    }
+
+    /**
+     * Return a Cursor over the list of all tasks in the database (except
+     * deleted ones)
      *
      * @return Cursor over all tasks
      */
     public Cursor fetchAllTasks() {
-        return mDb.query(TABLE, getFields(), null, null, null, null, KEY_TITLE);
+        return mDb.query(TABLE, getFields(), KEY_DELETED + "=0", null, null,
+                null, KEY_TITLE);
+    }
+
+    /**
+     * Return a Cursor over the list of all tasks (except deleted ones)
+     * together with statistics of their reports, see fetchTask(). All
+     * columns come from a single query, so the list doesn't need a query
+     * per task.
+     *
+     * @return Cursor over all tasks
+     */
+    public Cursor fetchAllTasksWithStats() {
+        return mDb.rawQuery(SQL_SELECT_WITH_STATS + " WHERE t." + KEY_DELETED
+                + "=0 ORDER BY t." + KEY_TITLE, null);
     }
 
     /**
-     * Return a Cursor positioned at the task that matches the given rowId
+     * Return a Cursor positioned at the task that matches the given rowId,
+     * unless the task is marked as deleted. Besides task fields, cursor
+     * contains statistics of task's reports (see TaskStatsPeer); they are
+     * NULL and report count is 0 if the task has no reports.
      *
      * @param rowId id of task to retrieve
      * @return Cursor positioned to matching task, if found
      * @throws SQLException if task could not be found/retrieved
      */
     public Cursor fetchTask(long rowId) throws SQLException {
-        Cursor mCursor = mDb.query(true, TABLE, getFields(),
-                KEY_ID + "=" + rowId,
-                null, null, null, null, null);
+        Cursor mCursor = mDb.rawQuery(SQL_SELECT_WITH_STATS + " WHERE t."
+                + KEY_ID + "=? AND t." + KEY_DELETED + "=0",
+                new String[] { String.valueOf(rowId) });
         if (mCursor != null) {
             mCursor.moveToFirst();
         }
@@ -0,0 +1,302 @@
+package com.k10v.goaltracker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.database.Cursor;
+
+/**
+ * Reports of a task as two parallel arrays (epoch days and values) sorted by
+ * date, so that no objects are created per report and reports can be looked
+ * up by binary search.
+ *
+ * Series are immutable. Changed series are new instances; a series with a
+ * report added after the last one shares the arrays with the original
+ * series (the arrays have spare capacity for that), so adding the latest
+ * report doesn't copy the whole history.
+ */
+public class TaskSeries {
+
+    /**
+     * Number of spare elements allocated for reports added later
+     */
+    private static final int SPARE_CAPACITY = 16;
+
+    private final int[] mDays;
+    private final float[] mValues;
+    private final int mSize;
+
+    /**
+     * Number of elements of the arrays used by any series sharing them; only
+     * the series which uses all of them may append to the arrays in place
+     */
+    private final AtomicInteger mUsed;
+
+    /**
+     * @param days Epoch days, sorted in ascending order
+     * @param values
+     * @param size Number of used elements in the arrays
+     */
+    public TaskSeries(int[] days, float[] values, int size) {
+        this(days, values, size, new AtomicInteger(size));
+    }
+
+    private TaskSeries(int[] days, float[] values, int size, AtomicInteger used) {
+        mDays = days;
+        mValues = values;
+        mSize = size;
+        mUsed = used;
+    }
+
+    /**
+     * Read all reports from the cursor, which must be sorted by date
+     *
+     * @param reportsCursor
+     * @return
+     */
+    public static TaskSeries read(Cursor reportsCursor) {
+
+        int size = reportsCursor.getCount();
+        int[] days = new int[getCapacity(size)];
+        float[] values = new float[days.length];
+
+        int dateIndex = reportsCursor.getColumnIndexOrThrow(ReportPeer.KEY_DATE);
+        int valueIndex = reportsCursor.getColumnIndexOrThrow(ReportPeer.KEY_VALUE);
+
+        reportsCursor.moveToFirst();
+        for (int i = 0; i < size; i++) {
+            days[i] = reportsCursor.getInt(dateIndex);
+            values[i] = reportsCursor.getFloat(valueIndex);
+            reportsCursor.moveToNext();
+        }
+
+        return new TaskSeries(days, values, size);
+    }
+
+    /**
+     * Read rollups returned by ReportRollupPeer.fetchRollups() as a series
+     * which approximates the reports: every period gives its first and last
+     * report and, if there are reports in between, its min and max values on
+     * the days after the first report (their real days are not stored, which
+     * is good enough when a period is narrower than a pixel or two).
+     *
+     * @param rollupsCursor
+     * @return
+     */
+    public static TaskSeries readRollups(Cursor rollupsCursor) {
+
+        int count = rollupsCursor.getCount();
+        int[] days = new int[getCapacity(count * 4)];
+        float[] values = new float[days.length];
+
+        int firstDateIndex = rollupsCursor.getColumnIndexOrThrow(ReportRollupPeer.KEY_FIRST_DATE);
+        int firstValueIndex = rollupsCursor.getColumnIndexOrThrow(ReportRollupPeer.KEY_FIRST_VALUE);
+        int lastDateIndex = rollupsCursor.getColumnIndexOrThrow(ReportRollupPeer.KEY_LAST_DATE);
+        int lastValueIndex = rollupsCursor.getColumnIndexOrThrow(ReportRollupPeer.KEY_LAST_VALUE);
+        int minValueIndex = rollupsCursor.getColumnIndexOrThrow(ReportRollupPeer.KEY_MIN_VALUE);
+        int maxValueIndex = rollupsCursor.getColumnIndexOrThrow(ReportRollupPeer.KEY_MAX_VALUE);
+
+        int size = 0;
+        rollupsCursor.moveToFirst();
+        for (int i = 0; i < count; i++) {
+            int firstDate = rollupsCursor.getInt(firstDateIndex);
+            float firstValue = rollupsCursor.getFloat(firstValueIndex);
+            int lastDate = rollupsCursor.getInt(lastDateIndex);
+            float lastValue = rollupsCursor.getFloat(lastValueIndex);
+            float minValue = rollupsCursor.getFloat(minValueIndex);
+            float maxValue = rollupsCursor.getFloat(maxValueIndex);
+            rollupsCursor.moveToNext();
+
+            days[size] = firstDate;
+            values[size] = firstValue;
+            size++;
+            if (lastDate == firstDate) {
+                continue;
+            }
+
+            // Extremes which are not the first or the last report
+            boolean hasMin = minValue < Math.min(firstValue, lastValue);
+            boolean hasMax = maxValue > Math.max(firstValue, lastValue);
+            int freeDays = lastDate - firstDate - 1;
+            if (hasMin && hasMax && freeDays < 2) {
+                // Room for one of them only, keep the one further away
+                if (Math.min(firstValue, lastValue) - minValue >= maxValue - Math.max(firstValue, lastValue)) {
+                    hasMax = false;
+                } else {
+                    hasMin = false;
+                }
+            }
+            if (hasMin && freeDays > 0) {
+                days[size] = firstDate + 1;
+                values[size] = minValue;
+                size++;
+            }
+            if (hasMax && freeDays > (hasMin ? 1 : 0)) {
+                days[size] = days[size - 1] + 1;
+                values[size] = maxValue;
+                size++;
+            }
+
+            days[size] = lastDate;
+            values[size] = lastValue;
+            size++;
+        }
+
+        return new TaskSeries(days, values, size);
+    }
+
+    /**
+     * Returns array length to allocate for the given number of elements,
+     * leaving room for elements added later
+     *
+     * @param size
+     * @return
+     */
+    static int getCapacity(int size) {
+        return size + (size >> 1) + SPARE_CAPACITY;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns series with the report added after the last report. Arrays
+     * are shared with this series if possible.
+     *
+     * @param day Epoch day, must be after the day of the last report
+     * @param value
+     * @return
+     */
+    public TaskSeries append(int day, float value) {
+        if (mSize > 0 && day <= mDays[mSize - 1]) {
+            throw new IllegalArgumentException("Report must be after the last report");
+        }
+        if (mSize < mDays.length && mUsed.compareAndSet(mSize, mSize + 1)) {
+            mDays[mSize] = day;
+            mValues[mSize] = value;
+            return new TaskSeries(mDays, mValues, mSize + 1, mUsed);
+        }
+        int[] days = new int[getCapacity(mSize + 1)];
+        float[] values = new float[days.length];
+        System.arraycopy(mDays, 0, days, 0, mSize);
+        System.arraycopy(mValues, 0, values, 0, mSize);
+        days[mSize] = day;
+        values[mSize] = value;
+        return new TaskSeries(days, values, mSize + 1);
+    }
+
+    /**
+     * Returns series with the first reports of this series
+     *
+     * @param size Number of reports to keep
+     * @return
+     */
+    public TaskSeries truncate(int size) {
+        if (size == mSize) {
+            return this;
+        }
+        return new TaskSeries(mDays, mValues, size, mUsed);
+    }
+
+    /**
+     * Returns series with the report for the given day added or replaced
+     *
+     * @param day Epoch day
+     * @param value
+     * @return
+     */
+    public TaskSeries withReport(int day, float value) {
+        int index = floorIndex(day);
+        if (index == mSize - 1 && (index < 0 || mDays[index] < day)) {
+            return append(day, value);
+        }
+        boolean isReplaced = (index >= 0 && mDays[index] == day);
+        int size = isReplaced ? mSize : mSize + 1;
+        int[] days = new int[getCapacity(size)];
+        float[] values = new float[days.length];
+        System.arraycopy(mDays, 0, days, 0, index + 1);
+        System.arraycopy(mValues, 0, values, 0, index + 1);
+        int rest = isReplaced ? index + 1 : index + 2;
+        System.arraycopy(mDays, index + 1, days, rest, mSize - index - 1);
+        System.arraycopy(mValues, index + 1, values, rest, mSize - index - 1);
+        int position = isReplaced ? index : index + 1;
+        days[position] = day;
+        values[position] = value;
+        return new TaskSeries(days, values, size);
+    }
+
+    /**
+     * Returns series without the report for the given day
+     *
+     * @param day Epoch day
+     * @return this series if there is no report for that day
+     */
+    public TaskSeries withoutReport(int day) {
+        int index = indexOf(day);
+        if (index < 0) {
+            return this;
+        }
+        if (index == mSize - 1) {
+            return truncate(index);
+        }
+        int[] days = new int[getCapacity(mSize - 1)];
+        float[] values = new float[days.length];
+        System.arraycopy(mDays, 0, days, 0, index);
+        System.arraycopy(mValues, 0, values, 0, index);
+        System.arraycopy(mDays, index + 1, days, index, mSize - index - 1);
+        System.arraycopy(mValues, index + 1, values, index, mSize - index - 1);
+        return new TaskSeries(days, values, mSize - 1);
+    }
+
+    public int getDay(int index) {
+        return mDays[index];
+    }
+
+    public float getValue(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Returns index of the report with the given date
+     *
+     * @param day Epoch day
+     * @return index or -1 if there is no report for that day
+     */
+    public int indexOf(int day) {
+        int index = floorIndex(day);
+        return (index >= 0 && mDays[index] == day) ? index : -1;
+    }
+
+    /**
+     * Returns index of the last report made on or before the given day
+     *
+     * @param day Epoch day
+     * @return index or -1 if all reports are made after that day
+     */
+    public int floorIndex(int day) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (mDays[middle] <= day) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Returns the value on the given day, i.e. value of the last report made
+     * on or before that day
+     *
+     * @param day Epoch day
+     * @param defaultValue Value to return if there are no reports before
+     * @return
+     */
+    public float getValueAt(int day, float defaultValue) {
+        int index = floorIndex(day);
+        return (index >= 0) ? mValues[index] : defaultValue;
+    }
+}
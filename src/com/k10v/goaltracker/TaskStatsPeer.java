@@ -0,0 +1,245 @@
+package com.k10v.goaltracker;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Aggregated details of task's reports (number of reports, min/max/last
+ * value, first/last date), so that they don't have to be calculated from all
+ * reports every time. Statistics are kept up to date by ReportPeer: they are
+ * updated incrementally when possible and rebuilt from the reports otherwise
+ * (e.g. when the report with the min value is deleted).
+ *
+ * Methods should be called in the same transaction as the report write.
+ */
+public class TaskStatsPeer extends BasePeer {
+
+    public static final String TABLE = "task_stats";
+
+    public static final String KEY_TASK_ID = "task_id";
+    public static final String KEY_REPORT_COUNT = "report_count";
+    public static final String KEY_MIN_VALUE = "min_value";
+    public static final String KEY_MAX_VALUE = "max_value";
+    public static final String KEY_LAST_VALUE = "last_value";
+    public static final String KEY_FIRST_DATE = "first_date";
+    public static final String KEY_LAST_DATE = "last_date";
+
+    /**
+     * Selects statistics of all tasks (or of a single task, if a WHERE
+     * condition is appended) from the reports table
+     */
+    private static final String SQL_SELECT_FROM_REPORTS = "SELECT "
+            + "r." + ReportPeer.KEY_TASK_ID + ", COUNT(*), "
+            + "MIN(r." + ReportPeer.KEY_VALUE + "), "
+            + "MAX(r." + ReportPeer.KEY_VALUE + "), "
+            + "(SELECT l." + ReportPeer.KEY_VALUE + " FROM " + ReportPeer.TABLE
+            + " l WHERE l." + ReportPeer.KEY_TASK_ID + " = r." + ReportPeer.KEY_TASK_ID
+            + " ORDER BY l." + ReportPeer.KEY_DATE + " DESC LIMIT 1), "
+            + "MIN(r." + ReportPeer.KEY_DATE + "), "
+            + "MAX(r." + ReportPeer.KEY_DATE + ") "
+            + "FROM " + ReportPeer.TABLE + " r";
+
+    private static final String SQL_INSERT_COLUMNS = "INSERT OR REPLACE INTO "
+            + TABLE + " (" + KEY_TASK_ID + ", " + KEY_REPORT_COUNT + ", "
+            + KEY_MIN_VALUE + ", " + KEY_MAX_VALUE + ", " + KEY_LAST_VALUE + ", "
+            + KEY_FIRST_DATE + ", " + KEY_LAST_DATE + ") ";
+
+    /**
+     * Rebuilds statistics of all tasks, used when the table is created
+     */
+    static final String SQL_REBUILD_ALL = SQL_INSERT_COLUMNS
+            + SQL_SELECT_FROM_REPORTS + " GROUP BY r." + ReportPeer.KEY_TASK_ID;
+
+    private static final String SQL_REBUILD = SQL_INSERT_COLUMNS
+            + SQL_SELECT_FROM_REPORTS + " WHERE r." + ReportPeer.KEY_TASK_ID
+            + " = ?1 GROUP BY r." + ReportPeer.KEY_TASK_ID;
+
+    // ?1 - date, ?2 - value, ?3 - task ID (in SET clause all columns have
+    // their old values)
+    private static final String SQL_ADD_REPORT = "UPDATE " + TABLE + " SET "
+            + KEY_MIN_VALUE + " = CASE WHEN " + KEY_REPORT_COUNT + " = 0 OR ?2 < "
+            + KEY_MIN_VALUE + " THEN ?2 ELSE " + KEY_MIN_VALUE + " END, "
+            + KEY_MAX_VALUE + " = CASE WHEN " + KEY_REPORT_COUNT + " = 0 OR "
+            + KEY_MAX_VALUE + " < ?2 THEN ?2 ELSE " + KEY_MAX_VALUE + " END, "
+            + KEY_LAST_VALUE + " = CASE WHEN " + KEY_REPORT_COUNT + " = 0 OR "
+            + KEY_LAST_DATE + " < ?1 THEN ?2 ELSE " + KEY_LAST_VALUE + " END, "
+            + KEY_FIRST_DATE + " = CASE WHEN " + KEY_REPORT_COUNT + " = 0 OR ?1 < "
+            + KEY_FIRST_DATE + " THEN ?1 ELSE " + KEY_FIRST_DATE + " END, "
+            + KEY_LAST_DATE + " = CASE WHEN " + KEY_REPORT_COUNT + " = 0 OR "
+            + KEY_LAST_DATE + " < ?1 THEN ?1 ELSE " + KEY_LAST_DATE + " END, "
+            + KEY_REPORT_COUNT + " = " + KEY_REPORT_COUNT + " + 1 "
+            + "WHERE " + KEY_TASK_ID + " = ?3";
+
+    // Only a report which is not an extreme of any kind can be removed
+    // without rebuilding
+    private static final String SQL_REMOVE_REPORT = "UPDATE " + TABLE + " SET "
+            + KEY_REPORT_COUNT + " = " + KEY_REPORT_COUNT + " - 1 "
+            + "WHERE " + KEY_TASK_ID + " = ?3 AND "
+            + KEY_MIN_VALUE + " < ?2 AND ?2 < " + KEY_MAX_VALUE + " AND "
+            + KEY_FIRST_DATE + " < ?1 AND ?1 < " + KEY_LAST_DATE;
+
+    // ?1 - task ID, ?2 - ID of the last report which existed before the
+    // insert; all newer reports belong to the task, as reports are inserted
+    // by a single thread, so they're found by ID rather than by the task
+    private static final String SQL_NEW_REPORTS = "FROM " + ReportPeer.TABLE
+            + " WHERE " + ReportPeer.KEY_ID + " > ?2";
+
+    private static final String SQL_NO_STATS = "IFNULL(s." + KEY_REPORT_COUNT + ", 0) = 0";
+
+    private static final String SQL_MERGE_NEW_REPORTS = SQL_INSERT_COLUMNS
+            + "SELECT ?1, IFNULL(s." + KEY_REPORT_COUNT + ", 0) + n.c, "
+            + "CASE WHEN " + SQL_NO_STATS + " OR n.mn < s." + KEY_MIN_VALUE
+            + " THEN n.mn ELSE s." + KEY_MIN_VALUE + " END, "
+            + "CASE WHEN " + SQL_NO_STATS + " OR s." + KEY_MAX_VALUE
+            + " < n.mx THEN n.mx ELSE s." + KEY_MAX_VALUE + " END, "
+            + "CASE WHEN " + SQL_NO_STATS + " OR s." + KEY_LAST_DATE
+            + " < n.ld THEN n.lv ELSE s." + KEY_LAST_VALUE + " END, "
+            + "CASE WHEN " + SQL_NO_STATS + " OR n.fd < s." + KEY_FIRST_DATE
+            + " THEN n.fd ELSE s." + KEY_FIRST_DATE + " END, "
+            + "CASE WHEN " + SQL_NO_STATS + " OR s." + KEY_LAST_DATE
+            + " < n.ld THEN n.ld ELSE s." + KEY_LAST_DATE + " END "
+            + "FROM (SELECT COUNT(*) c, "
+            + "MIN(" + ReportPeer.KEY_VALUE + ") mn, MAX(" + ReportPeer.KEY_VALUE + ") mx, "
+            + "MIN(" + ReportPeer.KEY_DATE + ") fd, MAX(" + ReportPeer.KEY_DATE + ") ld, "
+            + "(SELECT " + ReportPeer.KEY_VALUE + " " + SQL_NEW_REPORTS
+            + " ORDER BY " + ReportPeer.KEY_DATE + " DESC LIMIT 1) lv "
+            + SQL_NEW_REPORTS + ") n "
+            + "LEFT JOIN " + TABLE + " s ON s." + KEY_TASK_ID + " = ?1 "
+            + "WHERE n.c > 0";
+
+    private static final String SQL_IS_COUNT_WRONG = "SELECT (SELECT COUNT(*) FROM "
+            + ReportPeer.TABLE + " WHERE " + ReportPeer.KEY_TASK_ID + " = ?1) <> "
+            + "IFNULL((SELECT " + KEY_REPORT_COUNT + " FROM " + TABLE
+            + " WHERE " + KEY_TASK_ID + " = ?1), 0)";
+
+    private static final String SQL_DELETE = "DELETE FROM " + TABLE
+            + " WHERE " + KEY_TASK_ID + " = ?";
+
+    public TaskStatsPeer(GoalTrackerDbAdapter dbAdapter, SQLiteDatabase mDb) {
+        super(dbAdapter, mDb);
+    }
+
+    /**
+     * Update statistics after a report has been added to the task
+     *
+     * @param taskId
+     * @param date Epoch day
+     * @param value
+     */
+    public void reportAdded(long taskId, int date, double value) {
+        SQLiteStatement statement = getStatement(SQL_ADD_REPORT);
+        bindReport(statement, taskId, date, value);
+        if (executeUpdateDelete(statement) == 0) {
+            rebuild(taskId);
+        }
+    }
+
+    /**
+     * Update statistics after reports have been inserted, without reading
+     * the older reports; replaced reports are not removed from statistics
+     * (see rebuildIfCountIsWrong())
+     *
+     * @param taskId
+     * @param lastOldId ID of the last report inserted before, all reports
+     *        with greater IDs must belong to the task
+     */
+    public void reportsInserted(long taskId, long lastOldId) {
+        SQLiteStatement statement = getStatement(SQL_MERGE_NEW_REPORTS);
+        statement.bindLong(1, taskId);
+        statement.bindLong(2, lastOldId);
+        statement.execute();
+    }
+
+    /**
+     * Rebuild statistics if the report count doesn't match the reports,
+     * e.g. after inserted reports have replaced existing ones
+     *
+     * @param taskId
+     * @return true if statistics have been rebuilt
+     */
+    public boolean rebuildIfCountIsWrong(long taskId) {
+        SQLiteStatement statement = getStatement(SQL_IS_COUNT_WRONG);
+        statement.bindLong(1, taskId);
+        if (statement.simpleQueryForLong() == 0) {
+            return false;
+        }
+        rebuild(taskId);
+        return true;
+    }
+
+    /**
+     * Update statistics after a report has been removed from the task
+     *
+     * @param taskId
+     * @param date Epoch day of the removed report
+     * @param value Value of the removed report
+     */
+    public void reportRemoved(long taskId, int date, double value) {
+        if (!removeReport(taskId, date, value)) {
+            rebuild(taskId);
+        }
+    }
+
+    /**
+     * Update statistics after date and/or value of a report has been changed
+     *
+     * @param taskId
+     * @param oldDate
+     * @param oldValue
+     * @param date New epoch day
+     * @param value New value
+     */
+    public void reportChanged(long taskId, int oldDate, double oldValue,
+            int date, double value) {
+        if (removeReport(taskId, oldDate, oldValue)) {
+            reportAdded(taskId, date, value);
+        } else {
+            // Rebuilt statistics already include the new values
+            rebuild(taskId);
+        }
+    }
+
+    /**
+     * Remove the report from statistics without rebuilding them
+     *
+     * @param taskId
+     * @param date
+     * @param value
+     * @return false if statistics have to be rebuilt
+     */
+    private boolean removeReport(long taskId, int date, double value) {
+        SQLiteStatement statement = getStatement(SQL_REMOVE_REPORT);
+        bindReport(statement, taskId, date, value);
+        return executeUpdateDelete(statement) > 0;
+    }
+
+    /**
+     * Recalculate statistics of the task from its reports
+     *
+     * @param taskId
+     */
+    public void rebuild(long taskId) {
+        deleteStats(taskId);
+        SQLiteStatement statement = getStatement(SQL_REBUILD);
+        statement.bindLong(1, taskId);
+        statement.execute();
+    }
+
+    /**
+     * Delete statistics of the task (e.g. when all its reports are deleted)
+     *
+     * @param taskId
+     */
+    public void deleteStats(long taskId) {
+        SQLiteStatement statement = getStatement(SQL_DELETE);
+        statement.bindLong(1, taskId);
+        statement.execute();
+    }
+
+    private static void bindReport(SQLiteStatement statement, long taskId,
+            int date, double value) {
+        statement.bindLong(1, date);
+        statement.bindDouble(2, value);
+        statement.bindLong(3, taskId);
+    }
+}
@@ -1,8 +1,5 @@
 package com.k10v.goaltracker;
 
-import java.text.DecimalFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -11,18 +8,7 @@ import android.content.Context;
 public final class Util {
 
     public static String formatDate(Calendar calendar, Context context) {
-        Calendar today = Calendar.getInstance();
-        today.set(Calendar.HOUR_OF_DAY, 0);
-        today.set(Calendar.MINUTE, 0);
-        today.set(Calendar.SECOND, 0);
-        today.set(Calendar.MILLISECOND, 0);
-
-        if (calendar.equals(today)) {
-            return context.getString(R.string.date_today);
-        }
-
-        String format = calendar.get(Calendar.YEAR) == today.get(Calendar.YEAR) ? "MMM d" : "MMM d, yyyy";
-        return android.text.format.DateFormat.format(format, calendar).toString();
+        return formatDate(toEpochDay(calendar), context);
     }
 
     public static String formatDate(Date date, Context context) {
@@ -31,19 +17,106 @@ public final class Util {
         return formatDate(calendar, context);
     }
 
-    public static String formatDate(String sqlDateString, Context context) {
-        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-
-        Date date;
-        try {
-            date = df.parse(sqlDateString);
-        } catch (ParseException e) {
-            // Don't format records with invalid date
-            return sqlDateString;
-        }
-        return formatDate(date, context);
+    /**
+     * Formats a date for display ("Today" for today's date, dates of the
+     * current year are shown without the year); see DateFormatter
+     *
+     * @param epochDay
+     * @param context
+     * @return
+     */
+    public static String formatDate(int epochDay, Context context) {
+        return DateFormatter.getInstance(context).format(epochDay);
+    }
+
+    /**
+     * Returns number of days between 1970-01-01 and the date of the given
+     * calendar (time of day and time zone offset are ignored)
+     *
+     * @param calendar
+     * @return epoch day
+     */
+    public static int toEpochDay(Calendar calendar) {
+        return toEpochDay(
+                calendar.get(Calendar.YEAR),
+                calendar.get(Calendar.MONTH) + 1,
+                calendar.get(Calendar.DAY_OF_MONTH));
+    }
+
+    /**
+     * Returns number of days between 1970-01-01 and the given date of the
+     * proleptic Gregorian calendar
+     *
+     * @param year
+     * @param month 1..12
+     * @param day 1..31
+     * @return epoch day
+     */
+    public static int toEpochDay(int year, int month, int day) {
+        int y = (month <= 2) ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Converts epoch day to a date packed into a single number, i.e. 20110327
+     * for 2011-03-27 (use ymdYear(), ymdMonth() and ymdDay() to unpack it)
+     *
+     * @param epochDay
+     * @return date in yyyyMMdd form
+     */
+    public static int toYmd(int epochDay) {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+                - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = (mp < 10) ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return year * 10000 + month * 100 + day;
     }
 
+    public static int ymdYear(int ymd) {
+        return ymd / 10000;
+    }
+
+    public static int ymdMonth(int ymd) {
+        return ymd / 100 % 100;
+    }
+
+    public static int ymdDay(int ymd) {
+        return ymd % 100;
+    }
+
+    /**
+     * Sets calendar to the midnight of the given epoch day
+     *
+     * @param calendar
+     * @param epochDay
+     */
+    public static void setEpochDay(Calendar calendar, int epochDay) {
+        int ymd = toYmd(epochDay);
+        calendar.clear();
+        calendar.set(ymdYear(ymd), ymdMonth(ymd) - 1, ymdDay(ymd));
+    }
+
+    /**
+     * Returns epoch day of the current date
+     *
+     * @return
+     */
+    public static int getTodayEpochDay() {
+        return toEpochDay(Calendar.getInstance());
+    }
+
+    private static final NumberFormatter sNumberFormatter = new NumberFormatter();
+
     /**
      * Formats a number in a nice way: strips trailing zeros from float numbers
      * and uses "real" minus character for negative numbers
@@ -53,15 +126,7 @@ public final class Util {
      * @return
      */
     public static String formatNumber(float number, boolean withPlusSign) {
-        final DecimalFormat format = new DecimalFormat("#.#####");
-        if (0 < number) {
-            return (withPlusSign ? "+" : "") + format.format(number);
-        } else if (number < 0) {
-            // "\u2212" is a proper "minus" sign
-            return "\u2212" + format.format(-number);
-        } else {
-            return "0";
-        }
+        return sNumberFormatter.format(number, withPlusSign);
     }
 
     public static String formatNumber(float number) {
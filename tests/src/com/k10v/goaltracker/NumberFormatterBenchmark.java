@@ -0,0 +1,86 @@
+package com.k10v.goaltracker;
+
+import java.util.Random;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares speed of Util.formatNumber() with the DecimalFormat based
+ * implementation it replaced, on the same numbers; results are written to
+ * the log.
+ */
+public class NumberFormatterBenchmark extends TestCase {
+
+    private static final String TAG = "NumberFormatterBenchmark";
+
+    private static final int NUMBERS = 2000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 10;
+
+    private float[] mNumbers;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // Report-like values: mostly few decimal places, some with more
+        Random random = new Random(20111104);
+        mNumbers = new float[NUMBERS];
+        for (int i = 0; i < mNumbers.length; i++) {
+            if (i % 4 == 0) {
+                mNumbers[i] = (random.nextFloat() - 0.5f) * 2000;
+            } else {
+                mNumbers[i] = random.nextInt(200000) / 100f - 1000;
+            }
+        }
+    }
+
+    public void testFormatNumber() {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runOld();
+            runNew();
+        }
+
+        long oldTime = 0;
+        long newTime = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            int oldLength = runOld();
+            oldTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int newLength = runNew();
+            newTime += System.nanoTime() - start;
+
+            // Both give the same strings, see NumberFormatterTest
+            assertEquals(oldLength, newLength);
+        }
+
+        long calls = (long) ROUNDS * NUMBERS * 2;
+        Log.i(TAG, "DecimalFormat: " + (oldTime / calls) + " ns per number, "
+                + "Util.formatNumber(): " + (newTime / calls) + " ns per number");
+    }
+
+    /**
+     * @return total length of the strings, so that the work can't be skipped
+     */
+    private int runOld() {
+        int length = 0;
+        for (float number : mNumbers) {
+            length += NumberFormatterTest.formatWithDecimalFormat(number, false).length();
+            length += NumberFormatterTest.formatWithDecimalFormat(number, true).length();
+        }
+        return length;
+    }
+
+    private int runNew() {
+        int length = 0;
+        for (float number : mNumbers) {
+            length += Util.formatNumber(number, false).length();
+            length += Util.formatNumber(number, true).length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,152 @@
+package com.k10v.goaltracker;
+
+import java.text.DecimalFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that NumberFormatter gives the same results as the DecimalFormat
+ * based Util.formatNumber() it replaced, on edge cases and random numbers in
+ * locales with different digits and separators.
+ */
+public class NumberFormatterTest extends TestCase {
+
+    private static final Locale[] LOCALES = {
+        Locale.US, Locale.GERMANY, new Locale("ar"), new Locale("fa"), new Locale("hi")
+    };
+
+    private static final int RANDOM_NUMBERS = 20000;
+
+    private Locale mDefaultLocale;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDefaultLocale = Locale.getDefault();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Locale.setDefault(mDefaultLocale);
+        super.tearDown();
+    }
+
+    /**
+     * Numbers which are exactly halfway between two 5-digit decimals are
+     * rounded to the even one
+     */
+    public void testTies() {
+        assertSameInAllLocales(new float[] {
+            0.015625f, 0.046875f, 0.078125f, 0.109375f, 1.015625f, 123.015625f,
+            0.000005f, 0.000015f, 0.000025f, 2.5e-6f, 7.5e-6f
+        });
+    }
+
+    public void testLargeNumbers() {
+        float maxExact = 1e13f;
+        assertSameInAllLocales(new float[] {
+            maxExact, next(maxExact), prev(maxExact), prev(prev(maxExact)),
+            9.999999e12f, 1.0000001e13f, 16777216f, 16777217f, 4294967296f,
+            9.223372e18f, Float.MAX_VALUE
+        });
+    }
+
+    public void testSmallNumbers() {
+        assertSameInAllLocales(new float[] {
+            Float.MIN_VALUE, Float.intBitsToFloat(0x00800000), 1e-10f, 4.9e-6f, 5.1e-6f,
+            0.00001f, 0.1f, 0.3f, 0.7f, 1f / 3, 2f / 3, 0.99999f, 0.999995f
+        });
+    }
+
+    public void testNegativeNumbers() {
+        assertSameInAllLocales(new float[] {
+            -1f, -0.5f, -0.015625f, -0.000004f, -123.45678f, -1e13f, -Float.MAX_VALUE
+        });
+    }
+
+    public void testSpecialValues() {
+        assertSameInAllLocales(new float[] {
+            0f, -0f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY
+        });
+    }
+
+    public void testRandomNumbers() {
+        Random random = new Random(20111104);
+        float[] numbers = new float[RANDOM_NUMBERS];
+        for (int i = 0; i < numbers.length; i++) {
+            switch (i % 3) {
+            case 0:
+                // Any bit pattern (including NaNs and infinities)
+                numbers[i] = Float.intBitsToFloat(random.nextInt());
+                break;
+            case 1:
+                // Typical values of reports
+                numbers[i] = (random.nextFloat() - 0.5f) * 2000;
+                break;
+            default:
+                // Few decimal places, often close to a tie
+                numbers[i] = random.nextInt(2000000) / 64f - 15625;
+                break;
+            }
+        }
+        assertSameInAllLocales(numbers);
+    }
+
+    /**
+     * Cached strings must not leak between numbers or locales
+     */
+    public void testCache() {
+        Locale.setDefault(Locale.US);
+        NumberFormatter formatter = new NumberFormatter();
+        assertEquals("1.5", formatter.format(1.5f, false));
+        assertEquals("+1.5", formatter.format(1.5f, true));
+        assertEquals("1.5", formatter.format(1.5f, false));
+        Locale.setDefault(Locale.GERMANY);
+        assertEquals("1,5", formatter.format(1.5f, false));
+    }
+
+    private void assertSameInAllLocales(float[] numbers) {
+        for (Locale locale : LOCALES) {
+            Locale.setDefault(locale);
+            NumberFormatter formatter = new NumberFormatter();
+            StringBuilder builder = new StringBuilder();
+            for (float number : numbers) {
+                for (int sign = 0; sign < 2; sign++) {
+                    boolean withPlusSign = (sign == 1);
+                    String expected = formatWithDecimalFormat(number, withPlusSign);
+                    String message = locale + ", " + number + " (bits "
+                            + Integer.toHexString(Float.floatToRawIntBits(number)) + ")";
+                    assertEquals(message, expected, formatter.format(number, withPlusSign));
+                    builder.setLength(0);
+                    formatter.format(number, withPlusSign, builder);
+                    assertEquals(message, expected, builder.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Util.formatNumber() as it was before NumberFormatter
+     */
+    static String formatWithDecimalFormat(float number, boolean withPlusSign) {
+        final DecimalFormat format = new DecimalFormat("#.#####");
+        if (0 < number) {
+            return (withPlusSign ? "+" : "") + format.format(number);
+        } else if (number < 0) {
+            // "\u2212" is a proper "minus" sign
+            return "\u2212" + format.format(-number);
+        } else {
+            return "0";
+        }
+    }
+
+    private static float next(float number) {
+        return Float.intBitsToFloat(Float.floatToIntBits(number) + 1);
+    }
+
+    private static float prev(float number) {
+        return Float.intBitsToFloat(Float.floatToIntBits(number) - 1);
+    }
+}